@@ -12,18 +12,29 @@ public class PlaybackInfo {
     public static final int VIDEO_TYPE_MPEG_DASH = 2;
     public static final int VIDEO_TYPE_OTHER = 3;
 
+    public static final long NO_PROGRAM_ID = -1;
+
+    public final long programId;
     public final long startTimeMs;
     public final long endTimeMs;
     public final String videoUrl;
     public final int videoType;
+    public final StreamInfo streamInfo;
     public final TvContentRating[] contentRatings;
 
-    public PlaybackInfo(long startTimeMs, long endTimeMs, String videoUrl, int videoType,
+    public PlaybackInfo(long startTimeMs, long endTimeMs, StreamInfo streamInfo,
+                        TvContentRating[] contentRatings) {
+        this(NO_PROGRAM_ID, startTimeMs, endTimeMs, streamInfo, contentRatings);
+    }
+
+    public PlaybackInfo(long programId, long startTimeMs, long endTimeMs, StreamInfo streamInfo,
                         TvContentRating[] contentRatings) {
+        this.programId = programId;
         this.startTimeMs = startTimeMs;
         this.endTimeMs = endTimeMs;
         this.contentRatings = contentRatings;
-        this.videoUrl = videoUrl;
-        this.videoType = videoType;
+        this.streamInfo = streamInfo;
+        this.videoUrl = streamInfo.getUrl();
+        this.videoType = streamInfo.getType();
     }
 }
@@ -25,7 +25,7 @@ import android.text.TextUtils;
 import java.util.Arrays;
 import java.util.Objects;
 
-import at.pansy.iptv.util.TvContractUtil;
+import at.pansy.iptv.util.ContentRatingTable;
 
 /**
  * A convenience class to create and insert program information into the database.
@@ -62,6 +62,7 @@ public final class Program implements Comparable<Program> {
         endTimeUtcMillis = INVALID_LONG_VALUE;
         videoWidth = INVALID_INT_VALUE;
         videoHeight = INVALID_INT_VALUE;
+        contentRatings = ContentRatingTable.EMPTY;
     }
 
     public long getProgramId() {
@@ -137,7 +138,7 @@ public final class Program implements Comparable<Program> {
         return Objects.hash(channelId, startTimeUtcMillis, endTimeUtcMillis,
                 title, episodeTitle, description, longDescription, videoWidth, videoHeight,
                 posterArtUri, thumbnailUri, contentRatings, canonicalGenres, seasonNumber,
-                episodeNumber);
+                episodeNumber, internalProviderData);
     }
 
     @Override
@@ -160,7 +161,8 @@ public final class Program implements Comparable<Program> {
                 && Arrays.equals(contentRatings, program.contentRatings)
                 && Arrays.equals(canonicalGenres, program.canonicalGenres)
                 && seasonNumber == program.seasonNumber
-                && episodeNumber == program.episodeNumber;
+                && episodeNumber == program.episodeNumber
+                && Objects.equals(internalProviderData, program.internalProviderData);
     }
 
     @Override
@@ -262,7 +264,7 @@ public final class Program implements Comparable<Program> {
         }
         if (contentRatings != null && contentRatings.length > 0) {
             values.put(TvContract.Programs.COLUMN_CONTENT_RATING,
-                    TvContractUtil.contentRatingsToString(contentRatings));
+                    ContentRatingTable.flatten(contentRatings));
         } else {
             values.putNull(TvContract.Programs.COLUMN_CONTENT_RATING);
         }
@@ -342,8 +344,7 @@ public final class Program implements Comparable<Program> {
         }
         index = cursor.getColumnIndex(TvContract.Programs.COLUMN_CONTENT_RATING);
         if (index >= 0 && !cursor.isNull(index)) {
-            builder.setContentRatings(TvContractUtil.stringToContentRatings(cursor.getString(
-                    index)));
+            builder.setContentRatings(ContentRatingTable.get(cursor.getString(index)));
         }
         index = cursor.getColumnIndex(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS);
         if (index >= 0 && !cursor.isNull(index)) {
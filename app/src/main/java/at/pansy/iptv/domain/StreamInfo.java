@@ -0,0 +1,447 @@
+package at.pansy.iptv.domain;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Everything needed to play a stream, stored in {@code COLUMN_INTERNAL_PROVIDER_DATA} of channels
+ * and programs.
+ *
+ * <p>The encoded form starts with {@link #VERSION_PREFIX} and is followed by fields, each
+ * consisting of a one character tag, the length of the value, a colon and the value itself. Fields
+ * with unknown tags are skipped, so newer fields can be added without a new version. Data written
+ * by earlier versions, {@code "<type>,<url>"} for programs and a bare URL for channels, is decoded
+ * as well.
+ */
+public final class StreamInfo {
+
+    private static final String TAG = "StreamInfo";
+
+    private static final String VERSION_PREFIX = "#1;";
+
+    private static final char FIELD_TYPE = 't';
+    private static final char FIELD_URL = 'u';
+    private static final char FIELD_FALLBACK_URL = 'f';
+    private static final char FIELD_HEADER_NAME = 'k';
+    private static final char FIELD_HEADER_VALUE = 'v';
+    // 'p' held a program fingerprint which was never filled, don't reuse it.
+    private static final char FIELD_PROBED_TYPE = 'y';
+    private static final char FIELD_PROBE_TIME = 'm';
+    private static final char FIELD_PLAYBACK_PROFILE = 'l';
+
+    // Channel rows used to store bare URLs which were always played as HLS.
+    private static final int LEGACY_CHANNEL_TYPE = PlaybackInfo.VIDEO_TYPE_HLS;
+
+    public static final int TYPE_NOT_PROBED = -1;
+
+    private int type;
+    private String url;
+    private List<String> fallbackUrls;
+    private Map<String, String> headers;
+    private int probedType;
+    private long probeTimeMs;
+    private String playbackProfile;
+
+    private StreamInfo() {
+        type = PlaybackInfo.VIDEO_TYPE_HLS;
+        fallbackUrls = Collections.emptyList();
+        headers = Collections.emptyMap();
+        probedType = TYPE_NOT_PROBED;
+    }
+
+    /**
+     * Returns the stream type to play with, which is the probed type if there is one.
+     */
+    public int getType() {
+        return probedType != TYPE_NOT_PROBED ? probedType : type;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns alternate URLs of the same stream in the feed form, which may carry request
+     * headers, see {@link #fromFeedUrl}.
+     */
+    public List<String> getFallbackUrls() {
+        return fallbackUrls;
+    }
+
+    /**
+     * Returns the stream info of the fallback URL at {@code index}, with the type of this stream.
+     */
+    public StreamInfo getFallback(int index) {
+        return fromFeedUrl(getType(), fallbackUrls.get(index));
+    }
+
+    /**
+     * Returns this stream info without the URLs in {@code urls}, that is the primary URL and the
+     * fallback URLs without their headers. The first remaining fallback replaces an excluded
+     * primary URL. If no URL remains, this stream info is returned.
+     */
+    public StreamInfo withoutUrls(Set<String> urls) {
+        if (urls.isEmpty()) {
+            return this;
+        }
+        StreamInfo primary = urls.contains(url) ? null : this;
+        List<String> remainingFallbackUrls = new ArrayList<>();
+        for (String fallbackUrl : fallbackUrls) {
+            StreamInfo fallback = fromFeedUrl(getType(), fallbackUrl);
+            if (urls.contains(fallback.url)) {
+                continue;
+            }
+            if (primary == null) {
+                primary = fallback;
+            } else {
+                remainingFallbackUrls.add(fallbackUrl);
+            }
+        }
+        if (primary == null || (primary == this
+                && remainingFallbackUrls.size() == fallbackUrls.size())) {
+            return this;
+        }
+        StreamInfo streamInfo = new Builder(this).build();
+        streamInfo.url = primary.url;
+        streamInfo.headers = primary.headers;
+        streamInfo.fallbackUrls = Collections.unmodifiableList(remainingFallbackUrls);
+        return streamInfo;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public int getProbedType() {
+        return probedType;
+    }
+
+    public long getProbeTimeMs() {
+        return probeTimeMs;
+    }
+
+    /**
+     * Returns the name of the playback profile the feed chose for this stream, or {@code null}
+     * if the player chooses.
+     */
+    public String getPlaybackProfile() {
+        return playbackProfile;
+    }
+
+    public boolean isProbed() {
+        return probedType != TYPE_NOT_PROBED;
+    }
+
+    /**
+     * Returns this stream info with the probe result of {@code probed} if this one isn't probed
+     * and both have the same URL, or this stream info otherwise.
+     */
+    public StreamInfo withProbeOf(StreamInfo probed) {
+        if (isProbed() || probed == null || !probed.isProbed()
+                || !Objects.equals(url, probed.url)) {
+            return this;
+        }
+        return new Builder(this)
+                .setProbedType(probed.probedType)
+                .setProbeTimeMs(probed.probeTimeMs)
+                .build();
+    }
+
+    /**
+     * Returns whether {@code other} plays the same stream, that is the same URL with the same type
+     * and request headers. Fallbacks, probe details and the playback profile don't matter.
+     */
+    public boolean isSameStream(StreamInfo other) {
+        return other != null
+                && getType() == other.getType()
+                && Objects.equals(url, other.url)
+                && headers.equals(other.headers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, url, fallbackUrls, headers, probedType, probeTimeMs,
+                playbackProfile);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof StreamInfo)) {
+            return false;
+        }
+        StreamInfo info = (StreamInfo) other;
+        return type == info.type
+                && probedType == info.probedType
+                && probeTimeMs == info.probeTimeMs
+                && Objects.equals(url, info.url)
+                && fallbackUrls.equals(info.fallbackUrls)
+                && headers.equals(info.headers)
+                && Objects.equals(playbackProfile, info.playbackProfile);
+    }
+
+    @Override
+    public String toString() {
+        return "StreamInfo{"
+                + "type=" + type
+                + ", url=" + url
+                + ", fallbackUrls=" + fallbackUrls
+                + ", headers=" + headers
+                + ", probedType=" + probedType
+                + ", probeTimeMs=" + probeTimeMs
+                + ", playbackProfile=" + playbackProfile
+                + "}";
+    }
+
+    public String encode() {
+        StringBuilder builder = new StringBuilder(VERSION_PREFIX);
+        appendField(builder, FIELD_TYPE, Integer.toString(type));
+        appendField(builder, FIELD_URL, url);
+        for (String fallbackUrl : fallbackUrls) {
+            appendField(builder, FIELD_FALLBACK_URL, fallbackUrl);
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            appendField(builder, FIELD_HEADER_NAME, header.getKey());
+            appendField(builder, FIELD_HEADER_VALUE, header.getValue());
+        }
+        if (probedType != TYPE_NOT_PROBED) {
+            appendField(builder, FIELD_PROBED_TYPE, Integer.toString(probedType));
+            appendField(builder, FIELD_PROBE_TIME, Long.toString(probeTimeMs));
+        }
+        appendField(builder, FIELD_PLAYBACK_PROFILE, playbackProfile);
+        return builder.toString();
+    }
+
+    private static void appendField(StringBuilder builder, char tag, String value) {
+        if (value != null) {
+            builder.append(tag).append(value.length()).append(':').append(value);
+        }
+    }
+
+    /**
+     * Decodes provider data in any of the formats written so far.
+     *
+     * @return The stream info, or {@code null} if {@code data} is empty or malformed.
+     */
+    public static StreamInfo decode(String data) {
+        if (TextUtils.isEmpty(data)) {
+            return null;
+        }
+        if (!data.startsWith(VERSION_PREFIX)) {
+            return decodeLegacy(data);
+        }
+        Builder builder = new Builder();
+        String headerName = null;
+        int position = VERSION_PREFIX.length();
+        int length = data.length();
+        while (position < length) {
+            char tag = data.charAt(position++);
+            int valueLength = 0;
+            char c;
+            while (position < length && (c = data.charAt(position)) != ':') {
+                if (c < '0' || c > '9') {
+                    Log.w(TAG, "Malformed stream info: " + data);
+                    return null;
+                }
+                valueLength = valueLength * 10 + (c - '0');
+                position++;
+            }
+            int valueStart = position + 1;
+            int valueEnd = valueStart + valueLength;
+            if (valueEnd > length) {
+                Log.w(TAG, "Malformed stream info: " + data);
+                return null;
+            }
+            switch (tag) {
+                case FIELD_TYPE:
+                    builder.setType(parseInt(data, valueStart, valueEnd));
+                    break;
+                case FIELD_URL:
+                    builder.setUrl(data.substring(valueStart, valueEnd));
+                    break;
+                case FIELD_FALLBACK_URL:
+                    builder.addFallbackUrl(data.substring(valueStart, valueEnd));
+                    break;
+                case FIELD_HEADER_NAME:
+                    headerName = data.substring(valueStart, valueEnd);
+                    break;
+                case FIELD_HEADER_VALUE:
+                    if (headerName != null) {
+                        builder.addHeader(headerName, data.substring(valueStart, valueEnd));
+                        headerName = null;
+                    }
+                    break;
+                case FIELD_PROBED_TYPE:
+                    builder.setProbedType(parseInt(data, valueStart, valueEnd));
+                    break;
+                case FIELD_PROBE_TIME:
+                    builder.setProbeTimeMs(parseLong(data, valueStart, valueEnd));
+                    break;
+                case FIELD_PLAYBACK_PROFILE:
+                    builder.setPlaybackProfile(data.substring(valueStart, valueEnd));
+                    break;
+                default:
+                    // Written by a newer version, skip it.
+                    break;
+            }
+            position = valueEnd;
+        }
+        return builder.build();
+    }
+
+    private static StreamInfo decodeLegacy(String data) {
+        // Programs: "<type>,<url>", channels: "<url>".
+        int type = 0;
+        int position = 0;
+        char c;
+        while (position < data.length() && (c = data.charAt(position)) >= '0' && c <= '9') {
+            type = type * 10 + (c - '0');
+            position++;
+        }
+        if (position > 0 && position < data.length() && data.charAt(position) == ',') {
+            return fromFeedUrl(type, data.substring(position + 1));
+        }
+        return fromFeedUrl(LEGACY_CHANNEL_TYPE, data);
+    }
+
+    /**
+     * Creates the stream info of a URL from a feed. Request headers may be appended to the URL
+     * in the form {@code <url>|<name>=<value>|<name>=<value>}.
+     */
+    public static StreamInfo fromFeedUrl(int type, String feedUrl) {
+        Builder builder = new Builder().setType(type);
+        if (feedUrl == null) {
+            return builder.build();
+        }
+        int end = feedUrl.indexOf('|');
+        if (end < 0) {
+            return builder.setUrl(feedUrl).build();
+        }
+        builder.setUrl(feedUrl.substring(0, end));
+        while (end < feedUrl.length()) {
+            int start = end + 1;
+            end = feedUrl.indexOf('|', start);
+            if (end < 0) {
+                end = feedUrl.length();
+            }
+            int separator = feedUrl.indexOf('=', start);
+            if (separator > start && separator < end) {
+                builder.addHeader(feedUrl.substring(start, separator),
+                        feedUrl.substring(separator + 1, end));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates the stream info of a URL from a feed with alternate URLs of the same stream.
+     */
+    public static StreamInfo fromFeedUrl(int type, String feedUrl, List<String> fallbackFeedUrls) {
+        Builder builder = new Builder(fromFeedUrl(type, feedUrl));
+        for (String fallbackFeedUrl : fallbackFeedUrls) {
+            if (!fallbackFeedUrl.equals(feedUrl)) {
+                builder.addFallbackUrl(fallbackFeedUrl);
+            }
+        }
+        return builder.build();
+    }
+
+    private static int parseInt(String data, int start, int end) {
+        return (int) parseLong(data, start, end);
+    }
+
+    private static long parseLong(String data, int start, int end) {
+        boolean negative = start < end && data.charAt(start) == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 + (data.charAt(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Builds stream infos. Fallback URLs and headers are collected in place and copied once per
+     * {@link #build}.
+     */
+    public static final class Builder {
+        private int type = PlaybackInfo.VIDEO_TYPE_HLS;
+        private String url;
+        private final List<String> fallbackUrls = new ArrayList<>();
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private int probedType = TYPE_NOT_PROBED;
+        private long probeTimeMs;
+        private String playbackProfile;
+
+        public Builder() {
+        }
+
+        public Builder(StreamInfo other) {
+            type = other.type;
+            url = other.url;
+            fallbackUrls.addAll(other.fallbackUrls);
+            headers.putAll(other.headers);
+            probedType = other.probedType;
+            probeTimeMs = other.probeTimeMs;
+            playbackProfile = other.playbackProfile;
+        }
+
+        public Builder setType(int type) {
+            this.type = type;
+            return this;
+        }
+
+        public Builder setUrl(String url) {
+            this.url = url;
+            return this;
+        }
+
+        public Builder addFallbackUrl(String url) {
+            fallbackUrls.add(url);
+            return this;
+        }
+
+        public Builder addHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public Builder setProbedType(int probedType) {
+            this.probedType = probedType;
+            return this;
+        }
+
+        public Builder setProbeTimeMs(long probeTimeMs) {
+            this.probeTimeMs = probeTimeMs;
+            return this;
+        }
+
+        public Builder setPlaybackProfile(String playbackProfile) {
+            this.playbackProfile = playbackProfile;
+            return this;
+        }
+
+        public StreamInfo build() {
+            StreamInfo streamInfo = new StreamInfo();
+            streamInfo.type = type;
+            streamInfo.url = url;
+            if (!fallbackUrls.isEmpty()) {
+                streamInfo.fallbackUrls =
+                        Collections.unmodifiableList(new ArrayList<>(fallbackUrls));
+            }
+            if (!headers.isEmpty()) {
+                streamInfo.headers = Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+            }
+            streamInfo.probedType = probedType;
+            streamInfo.probeTimeMs = probeTimeMs;
+            streamInfo.playbackProfile = playbackProfile;
+            return streamInfo;
+        }
+    }
+}
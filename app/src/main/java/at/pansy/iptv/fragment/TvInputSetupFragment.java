@@ -197,8 +197,9 @@ public class TvInputSetupFragment extends DetailsFragment {
                             TvContract.AUTHORITY);
                     boolean syncServiceInProgress = syncActive || syncPending;
                     if (syncRequested && syncServiceStarted && !syncServiceInProgress) {
-                        // Only current programs are registered at this point. Request a full sync.
-                        SyncUtil.requestSync(inputId, false);
+                        // Only current programs are registered at this point. Request a full sync,
+                        // which also repairs programs a checkpoint wrongly considered unchanged.
+                        SyncUtil.requestFullSync(inputId);
 
                         getActivity().setResult(Activity.RESULT_OK);
                         getActivity().finish();
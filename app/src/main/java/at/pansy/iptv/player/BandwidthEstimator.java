@@ -0,0 +1,97 @@
+package at.pansy.iptv.player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+
+/**
+ * Process wide moving average of the download bitrate, shared by all players and kept across
+ * restarts, so that a tune starts with the variant the connection can sustain instead of guessing.
+ *
+ * <p>Like {@link com.google.android.exoplayer.upstream.DefaultBandwidthMeter}, concurrent
+ * transfers are measured together, from the start of the first one to the end of each one.
+ * Samples of a few bytes, like playlist refreshes, measure latency rather than bitrate and are
+ * skipped.
+ */
+class BandwidthEstimator implements BandwidthMeter {
+
+    private static final String PREFERENCES_NAME = "bandwidth";
+    private static final String KEY_BITRATE_ESTIMATE = "bitrate_estimate";
+    private static final String KEY_ESTIMATE_TIME_MS = "estimate_time_ms";
+
+    // Weight of a new sample in the moving average.
+    private static final double ALPHA = 0.3;
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    private static final long MIN_SAMPLE_MS = 50;
+    private static final long PERSIST_INTERVAL_MS = 30 * 1000;
+    // Estimates from an earlier day likely belong to another network.
+    private static final long MAX_PERSISTED_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    private static BandwidthEstimator instance;
+
+    private final SharedPreferences preferences;
+    private long bitrateEstimate = NO_ESTIMATE;
+    private int streamCount;
+    private long sampleStartMs;
+    private long sampleBytes;
+    private long lastPersistMs;
+
+    private BandwidthEstimator(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        long estimateTimeMs = preferences.getLong(KEY_ESTIMATE_TIME_MS, 0);
+        if (System.currentTimeMillis() - estimateTimeMs < MAX_PERSISTED_AGE_MS) {
+            bitrateEstimate = preferences.getLong(KEY_BITRATE_ESTIMATE, NO_ESTIMATE);
+        }
+    }
+
+    static synchronized BandwidthEstimator getInstance(Context context) {
+        if (instance == null) {
+            instance = new BandwidthEstimator(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @Override
+    public synchronized long getBitrateEstimate() {
+        return bitrateEstimate;
+    }
+
+    @Override
+    public synchronized void onTransferStart() {
+        if (streamCount++ == 0) {
+            sampleStartMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    @Override
+    public synchronized void onBytesTransferred(int bytes) {
+        sampleBytes += bytes;
+    }
+
+    @Override
+    public synchronized void onTransferEnd() {
+        if (streamCount == 0) {
+            return;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        long elapsedMs = nowMs - sampleStartMs;
+        if (sampleBytes >= MIN_SAMPLE_BYTES && elapsedMs >= MIN_SAMPLE_MS) {
+            long bitrate = sampleBytes * 8000 / elapsedMs;
+            bitrateEstimate = bitrateEstimate == NO_ESTIMATE ? bitrate
+                    : (long) (bitrateEstimate + ALPHA * (bitrate - bitrateEstimate));
+            if (nowMs - lastPersistMs >= PERSIST_INTERVAL_MS) {
+                lastPersistMs = nowMs;
+                preferences.edit()
+                        .putLong(KEY_BITRATE_ESTIMATE, bitrateEstimate)
+                        .putLong(KEY_ESTIMATE_TIME_MS, System.currentTimeMillis())
+                        .apply();
+            }
+        }
+        if (--streamCount > 0) {
+            sampleStartMs = nowMs;
+        }
+        sampleBytes = 0;
+    }
+}
@@ -0,0 +1,145 @@
+package at.pansy.iptv.player;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.hls.HlsMasterPlaylist;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.upstream.DefaultHttpDataSource;
+import com.google.android.exoplayer.upstream.Loader;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.upstream.UriLoadable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import at.pansy.iptv.domain.StreamInfo;
+
+/**
+ * Fetches the manifest of a stream from several of its mirrors at once and reports the first
+ * valid one. The other fetches are canceled and the latency of every mirror is recorded in
+ * {@link MirrorStats}, so that later races start with the fastest mirrors.
+ *
+ * <p>Callbacks are delivered on the looper passed to {@link #start}.
+ */
+class ManifestRace<T> implements Loader.Callback {
+
+    private static final String TAG = "ManifestRace";
+
+    interface Listener<T> {
+        void onManifest(StreamInfo mirror, DefaultHttpDataSource dataSource, T manifest);
+        void onManifestError(IOException e);
+    }
+
+    private final List<StreamInfo> mirrors;
+    private final String userAgent;
+    private final TransferListener transferListener;
+    private final UriLoadable.Parser<T> parser;
+    private final Listener<T> listener;
+
+    private final List<Loader> loaders = new ArrayList<>();
+    private final List<UriLoadable<T>> loadables = new ArrayList<>();
+    private final List<DefaultHttpDataSource> dataSources = new ArrayList<>();
+    private long startMs;
+    private int failed;
+    private boolean finished;
+
+    /**
+     * @param mirrors The mirrors to fetch from, all of them are started.
+     * @param transferListener Listener of the data sources, which play the winning mirror.
+     */
+    ManifestRace(List<StreamInfo> mirrors, String userAgent, TransferListener transferListener,
+            UriLoadable.Parser<T> parser, Listener<T> listener) {
+        this.mirrors = mirrors;
+        this.userAgent = userAgent;
+        this.transferListener = transferListener;
+        this.parser = parser;
+        this.listener = listener;
+    }
+
+    void start(Looper looper) {
+        startMs = SystemClock.elapsedRealtime();
+        for (int i = 0; i < mirrors.size(); ++i) {
+            DefaultHttpDataSource dataSource =
+                    TvInputPlayer.newDataSource(userAgent, mirrors.get(i), transferListener);
+            UriLoadable<T> loadable = new UriLoadable<>(mirrors.get(i).getUrl(), dataSource,
+                    parser);
+            Loader loader = new Loader("Loader:Manifest" + i);
+            dataSources.add(dataSource);
+            loadables.add(loadable);
+            loaders.add(loader);
+            loader.startLoading(looper, loadable, this);
+        }
+    }
+
+    /**
+     * Cancels all fetches without notifying the listener.
+     */
+    void cancel() {
+        finished = true;
+        for (Loader loader : loaders) {
+            loader.release();
+        }
+    }
+
+    @Override
+    public void onLoadCompleted(Loader.Loadable loadable) {
+        int index = loadables.indexOf(loadable);
+        if (finished || index < 0) {
+            return;
+        }
+        T manifest = loadables.get(index).getResult();
+        if (!isValid(manifest)) {
+            onLoadError(loadable, new IOException("Invalid manifest from "
+                    + mirrors.get(index).getUrl()));
+            return;
+        }
+        long latencyMs = SystemClock.elapsedRealtime() - startMs;
+        MirrorStats.recordLatency(mirrors.get(index), latencyMs);
+        for (int i = 0; i < mirrors.size(); ++i) {
+            if (i != index && loaders.get(i).isLoading()) {
+                MirrorStats.recordMinimumLatency(mirrors.get(i), latencyMs);
+            }
+        }
+        cancel();
+        if (mirrors.size() > 1) {
+            Log.d(TAG, "Mirror " + mirrors.get(index).getUrl() + " won after " + latencyMs
+                    + "ms");
+        }
+        listener.onManifest(mirrors.get(index), dataSources.get(index), manifest);
+    }
+
+    @Override
+    public void onLoadCanceled(Loader.Loadable loadable) {
+        // Do nothing.
+    }
+
+    @Override
+    public void onLoadError(Loader.Loadable loadable, IOException e) {
+        int index = loadables.indexOf(loadable);
+        if (finished || index < 0) {
+            return;
+        }
+        Log.w(TAG, "Failed to fetch manifest from " + mirrors.get(index).getUrl(), e);
+        MirrorStats.recordError(mirrors.get(index));
+        UrlResolver.invalidate(mirrors.get(index));
+        if (++failed == mirrors.size()) {
+            cancel();
+            listener.onManifestError(e);
+        }
+    }
+
+    private static boolean isValid(Object manifest) {
+        if (manifest instanceof HlsMasterPlaylist) {
+            return !((HlsMasterPlaylist) manifest).variants.isEmpty();
+        } else if (manifest instanceof HlsMediaPlaylist) {
+            return !((HlsMediaPlaylist) manifest).segments.isEmpty();
+        } else if (manifest instanceof MediaPresentationDescription) {
+            return ((MediaPresentationDescription) manifest).getPeriodCount() > 0;
+        }
+        return manifest != null;
+    }
+}
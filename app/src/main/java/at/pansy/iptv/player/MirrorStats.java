@@ -0,0 +1,79 @@
+package at.pansy.iptv.player;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import at.pansy.iptv.domain.StreamInfo;
+
+/**
+ * Process wide moving averages of the manifest latency per host, used to try the fastest mirrors
+ * of a stream first.
+ */
+class MirrorStats {
+
+    // Weight of a new sample in the moving average.
+    private static final double ALPHA = 0.3;
+    // Assumed latency of hosts without samples, so that they get a chance against slow ones.
+    private static final long UNKNOWN_LATENCY_MS = 1000;
+    // Sample recorded for a failed fetch.
+    private static final long ERROR_LATENCY_MS = 10000;
+
+    private static final ConcurrentMap<String, Double> LATENCIES = new ConcurrentHashMap<>();
+
+    private MirrorStats() {}
+
+    /**
+     * Returns up to {@code count} mirrors, fastest first. Mirrors with the same latency keep
+     * their order.
+     */
+    static List<StreamInfo> rank(List<StreamInfo> mirrors, int count) {
+        List<StreamInfo> ranked = new ArrayList<>(mirrors);
+        Collections.sort(ranked, new Comparator<StreamInfo>() {
+            @Override
+            public int compare(StreamInfo m1, StreamInfo m2) {
+                return Double.compare(getLatencyMs(m1), getLatencyMs(m2));
+            }
+        });
+        return ranked.subList(0, Math.min(count, ranked.size()));
+    }
+
+    static void recordLatency(StreamInfo mirror, long latencyMs) {
+        String host = getHost(mirror);
+        if (host == null) {
+            return;
+        }
+        Double latency = LATENCIES.get(host);
+        LATENCIES.put(host, latency == null ? latencyMs
+                : latency + ALPHA * (latencyMs - latency));
+    }
+
+    /**
+     * Records that a fetch from {@code mirror} took at least {@code latencyMs}, because it was
+     * canceled when another mirror won.
+     */
+    static void recordMinimumLatency(StreamInfo mirror, long latencyMs) {
+        if (getLatencyMs(mirror) < latencyMs) {
+            recordLatency(mirror, latencyMs);
+        }
+    }
+
+    static void recordError(StreamInfo mirror) {
+        recordLatency(mirror, ERROR_LATENCY_MS);
+    }
+
+    private static double getLatencyMs(StreamInfo mirror) {
+        String host = getHost(mirror);
+        Double latency = host != null ? LATENCIES.get(host) : null;
+        return latency != null ? latency : UNKNOWN_LATENCY_MS;
+    }
+
+    private static String getHost(StreamInfo mirror) {
+        return mirror.getUrl() != null ? Uri.parse(mirror.getUrl()).getHost() : null;
+    }
+}
@@ -0,0 +1,64 @@
+package at.pansy.iptv.player;
+
+/**
+ * Buffering and live edge settings of a {@link TvInputPlayer}, trading delay behind the live
+ * edge and startup time against robustness to throughput drops.
+ *
+ * <p>Profiles are ordered from the lowest latency to the most robust, see {@link #ALL}.
+ */
+public final class PlaybackProfile {
+
+    public static final PlaybackProfile LOW_LATENCY =
+            new PlaybackProfile(0, "low-latency", 500, 2000, 150, 8000, 5000, 10000);
+    public static final PlaybackProfile BALANCED =
+            new PlaybackProfile(1, "balanced", 1000, 5000, 300, 30000, 15000, 30000);
+    public static final PlaybackProfile ROBUST =
+            new PlaybackProfile(2, "robust", 2500, 10000, 500, 45000, 30000, 60000);
+
+    public static final PlaybackProfile[] ALL = {LOW_LATENCY, BALANCED, ROBUST};
+
+    /** Position in {@link #ALL}. */
+    public final int index;
+    public final String name;
+    /** Media ExoPlayer buffers before it starts playing. */
+    public final int minBufferMs;
+    /** Media ExoPlayer buffers before it resumes after a stall. */
+    public final int minRebufferMs;
+    /** Size of the media buffer in 64 KB segments. */
+    public final int bufferSegments;
+    /** Delay behind the live edge of DASH streams. */
+    public final int liveEdgeLatencyMs;
+    /** Buffered media below which loading is prioritized. */
+    public final int lowWatermarkMs;
+    /** Buffered media above which loading stops. */
+    public final int highWatermarkMs;
+
+    private PlaybackProfile(int index, String name, int minBufferMs, int minRebufferMs,
+            int bufferSegments, int liveEdgeLatencyMs, int lowWatermarkMs, int highWatermarkMs) {
+        this.index = index;
+        this.name = name;
+        this.minBufferMs = minBufferMs;
+        this.minRebufferMs = minRebufferMs;
+        this.bufferSegments = bufferSegments;
+        this.liveEdgeLatencyMs = liveEdgeLatencyMs;
+        this.lowWatermarkMs = lowWatermarkMs;
+        this.highWatermarkMs = highWatermarkMs;
+    }
+
+    /**
+     * Returns the profile called {@code name}, or {@code null} if there is none.
+     */
+    public static PlaybackProfile fromName(String name) {
+        for (PlaybackProfile profile : ALL) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,134 @@
+package at.pansy.iptv.player;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Timestamps of the stages of a single tune, from {@code onTune} to the first frame drawn.
+ *
+ * <p>Each stage is marked once, when it completes. Stages which don't apply, like the manifest
+ * of a progressive stream or everything before the first frame of a standby player, stay
+ * unmarked. The duration of a stage is the time since the stage completed before it, so the
+ * durations of all marked stages add up to the total.
+ *
+ * <p>The settle time covers the debounce of rapid tunes and the wait for a thread to do the
+ * lookup. Both it and the provider lookup may be marked on the database thread before the trace
+ * is handed to the main thread, everything else is marked on the main thread.
+ */
+public class TuneTrace {
+
+    public static final int STAGE_SETTLE = 0;
+    public static final int STAGE_PROVIDER_LOOKUP = 1;
+    public static final int STAGE_MANIFEST = 2;
+    public static final int STAGE_VARIANT_SELECTION = 3;
+    public static final int STAGE_FIRST_SEGMENT = 4;
+    public static final int STAGE_DECODER_INIT = 5;
+    public static final int STAGE_FIRST_FRAME = 6;
+
+    public static final String[] STAGE_NAMES = {
+            "settle", "provider_lookup", "manifest", "variant_selection", "first_segment",
+            "decoder_init", "first_frame"
+    };
+    public static final int STAGE_COUNT = STAGE_NAMES.length;
+
+    private static final long NOT_MARKED = -1;
+
+    private final long channelId;
+    private final long startTimeMs;
+    private final long startRealtimeMs;
+    private final long[] stageEndMs = new long[STAGE_COUNT];
+    private boolean warm;
+
+    public TuneTrace(long channelId) {
+        this.channelId = channelId;
+        startTimeMs = System.currentTimeMillis();
+        startRealtimeMs = SystemClock.elapsedRealtime();
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            stageEndMs[i] = NOT_MARKED;
+        }
+    }
+
+    /**
+     * Marks {@code stage} as completed now, unless it was marked before.
+     */
+    public void mark(int stage) {
+        if (stageEndMs[stage] == NOT_MARKED) {
+            stageEndMs[stage] = SystemClock.elapsedRealtime() - startRealtimeMs;
+        }
+    }
+
+    /**
+     * Sets whether the tune started from a prepared standby player.
+     */
+    public void setWarm(boolean warm) {
+        this.warm = warm;
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    public long getChannelId() {
+        return channelId;
+    }
+
+    public boolean isMarked(int stage) {
+        return stageEndMs[stage] != NOT_MARKED;
+    }
+
+    /**
+     * Returns the time from the stage completed before {@code stage} until {@code stage}
+     * completed, or {@code -1} if it isn't marked.
+     */
+    public long getStageDurationMs(int stage) {
+        long endMs = stageEndMs[stage];
+        if (endMs == NOT_MARKED) {
+            return NOT_MARKED;
+        }
+        // Stages may complete out of order, e.g. the decoder is initialized while the first
+        // segment is still loading.
+        long previousEndMs = 0;
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            long otherEndMs = stageEndMs[i];
+            if (i != stage && otherEndMs != NOT_MARKED
+                    && (otherEndMs < endMs || (otherEndMs == endMs && i < stage))) {
+                previousEndMs = Math.max(previousEndMs, otherEndMs);
+            }
+        }
+        return endMs - previousEndMs;
+    }
+
+    /**
+     * Returns the time until the latest stage completed.
+     */
+    public long getTotalMs() {
+        long totalMs = 0;
+        for (long endMs : stageEndMs) {
+            totalMs = Math.max(totalMs, endMs);
+        }
+        return totalMs;
+    }
+
+    /**
+     * Returns the trace as a single line JSON object for the tune history.
+     */
+    public String toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("time", startTimeMs);
+            json.put("channel", channelId);
+            json.put("warm", warm);
+            json.put("total_ms", getTotalMs());
+            for (int i = 0; i < STAGE_COUNT; ++i) {
+                if (isMarked(i)) {
+                    json.put(STAGE_NAMES[i] + "_ms", getStageDurationMs(i));
+                }
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return json.toString();
+    }
+}
@@ -37,6 +37,7 @@ import com.google.android.exoplayer.MediaCodecTrackRenderer;
 import com.google.android.exoplayer.MediaCodecUtil;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.chunk.Chunk;
 import com.google.android.exoplayer.chunk.ChunkSampleSource;
 import com.google.android.exoplayer.chunk.ChunkSource;
 import com.google.android.exoplayer.chunk.Format;
@@ -59,11 +60,12 @@ import com.google.android.exoplayer.hls.Variant;
 import com.google.android.exoplayer.text.Cue;
 import com.google.android.exoplayer.text.TextRenderer;
 import com.google.android.exoplayer.text.eia608.Eia608TrackRenderer;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DataSource;
 import com.google.android.exoplayer.upstream.DefaultAllocator;
-import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer.upstream.DefaultHttpDataSource;
 import com.google.android.exoplayer.upstream.DefaultUriDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
 import com.google.android.exoplayer.util.ManifestFetcher;
 import com.google.android.exoplayer.util.MimeTypes;
 
@@ -71,9 +73,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+import at.pansy.iptv.R;
+import at.pansy.iptv.domain.StreamInfo;
+
 /**
  * A wrapper around {@link ExoPlayer} that provides a higher level interface. Designed for
  * integration with {@link android.media.tv.TvInputService}.
@@ -85,14 +92,12 @@ public class TvInputPlayer implements TextRenderer {
     public static final int SOURCE_TYPE_MPEG_DASH = 2;
 
     private static final int RENDERER_COUNT = 3;
-    private static final int MIN_BUFFER_MS = 1000;
-    private static final int MIN_REBUFFER_MS = 5000;
 
-    private static final int BUFFER_SEGMENTS = 300;
     private static final int BUFFER_SEGMENT_SIZE = 64 * 1024;
     private static final int VIDEO_BUFFER_SEGMENTS = 200;
     private static final int AUDIO_BUFFER_SEGMENTS = 60;
-    private static final int LIVE_EDGE_LATENCY_MS = 30000;
+    // Share of the bandwidth estimate the start variant may use, leaving room for variance.
+    private static final float START_BANDWIDTH_FRACTION = 0.75f;
 
     private static final int NO_TRACK_SELECTED = -1;
 
@@ -105,6 +110,20 @@ public class TvInputPlayer implements TextRenderer {
     private float volume;
     private Surface surface;
     private Long pendingSeekPosition;
+    private final PlaybackProfile profile;
+    private int bufferSegments;
+    private boolean prepared;
+    // Set once released, so that manifest loads still in flight don't build renderers.
+    private boolean released;
+    private TuneTrace tuneTrace;
+    private ManifestRace<?> manifestRace;
+    // The stream passed to prepare, before its URLs were resolved.
+    private StreamInfo streamInfo;
+    // Maps every raced mirror, by identity, to the mirror of streamInfo it was resolved from.
+    private final Map<StreamInfo, StreamInfo> declaredMirrors = new IdentityHashMap<>();
+    // The mirror of streamInfo which plays, or null while they are raced.
+    private StreamInfo mirror;
+    private BandwidthEstimator bandwidthMeter;
     private final TvTrackInfo[][] tvTracks = new TvTrackInfo[RENDERER_COUNT][];
     private final int[] selectedTvTracks = new int[RENDERER_COUNT];
 
@@ -129,7 +148,7 @@ public class TvInputPlayer implements TextRenderer {
 
                 @Override
                 public void onDecoderInitialized(String decoderName, long elapsedRealtimeMs, long initializationDurationMs) {
-
+                    markStage(TuneTrace.STAGE_DECODER_INIT);
                 }
 
                 @Override
@@ -148,14 +167,23 @@ public class TvInputPlayer implements TextRenderer {
                 }
             };
 
+    private final ChunkLoadListener chunkLoadListener = new ChunkLoadListener();
+
     public TvInputPlayer() {
+        this(PlaybackProfile.BALANCED);
+    }
+
+    public TvInputPlayer(PlaybackProfile profile) {
+        this.profile = profile;
+        bufferSegments = profile.bufferSegments;
         handler = new Handler();
         for (int i = 0; i < RENDERER_COUNT; ++i) {
             tvTracks[i] = new TvTrackInfo[0];
             selectedTvTracks[i] = NO_TRACK_SELECTED;
         }
         callbacks = new CopyOnWriteArrayList<>();
-        player = ExoPlayer.Factory.newInstance(RENDERER_COUNT, MIN_BUFFER_MS, MIN_REBUFFER_MS);
+        player = ExoPlayer.Factory.newInstance(RENDERER_COUNT, profile.minBufferMs,
+                profile.minRebufferMs);
         player.addListener(new ExoPlayer.Listener() {
             @Override
             public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
@@ -178,6 +206,10 @@ public class TvInputPlayer implements TextRenderer {
 
             @Override
             public void onPlayerError(ExoPlaybackException e) {
+                if (streamInfo != null) {
+                    // The redirect may have expired, follow the whole chain next time.
+                    UrlResolver.invalidate(streamInfo);
+                }
                 for (Callback callback : callbacks) {
                     callback.onPlayerError(e);
                 }
@@ -192,16 +224,23 @@ public class TvInputPlayer implements TextRenderer {
         }
     }
 
-    public void prepare(final Context context, final Uri originalUri, int sourceType) {
+    public void prepare(final Context context, StreamInfo streamInfo) {
 
         final String userAgent = getUserAgent(context);
-        final DefaultHttpDataSource dataSource = new DefaultHttpDataSource(userAgent, null);
-        final Uri uri = processUriParameters(originalUri, dataSource);
+        int sourceType = streamInfo.getType();
+        this.streamInfo = streamInfo;
+        bandwidthMeter = BandwidthEstimator.getInstance(context);
 
         if (sourceType == SOURCE_TYPE_HTTP_PROGRESSIVE) {
+            mirror = streamInfo;
+            StreamInfo resolved = UrlResolver.getResolved(streamInfo);
+            // A live progressive stream is a single transfer which never ends, it would keep the
+            // shared estimate from taking samples.
+            DefaultHttpDataSource dataSource = newDataSource(userAgent, resolved, null);
+            Uri uri = Uri.parse(resolved.getUrl());
             ExtractorSampleSource sampleSource =
                     new ExtractorSampleSource(uri, dataSource, new DefaultAllocator(BUFFER_SEGMENT_SIZE),
-                            BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE);
+                            bufferSegments * BUFFER_SEGMENT_SIZE);
             audioRenderer = new MediaCodecAudioTrackRenderer(sampleSource);
             videoRenderer = new MediaCodecVideoTrackRenderer(sampleSource,
                     MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 0, handler,
@@ -209,14 +248,17 @@ public class TvInputPlayer implements TextRenderer {
             textRenderer = new DummyTrackRenderer();
             prepareInternal();
         } else if (sourceType == SOURCE_TYPE_HLS) {
-            HlsPlaylistParser parser = new HlsPlaylistParser();
-            ManifestFetcher<HlsPlaylist> playlistFetcher =
-                    new ManifestFetcher<>(uri.toString(), dataSource, parser);
-            playlistFetcher.singleLoad(handler.getLooper(),
-                    new ManifestFetcher.ManifestCallback<HlsPlaylist>() {
+            manifestRace = new ManifestRace<>(getMirrors(context, streamInfo), userAgent,
+                    bandwidthMeter, new HlsPlaylistParser(),
+                    new ManifestRace.Listener<HlsPlaylist>() {
                         @Override
-                        public void onSingleManifest(HlsPlaylist manifest) {
-                            DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
+                        public void onManifest(StreamInfo mirror,
+                                DefaultHttpDataSource dataSource, HlsPlaylist manifest) {
+                            if (released) {
+                                return;
+                            }
+                            TvInputPlayer.this.mirror = declaredMirrors.get(mirror);
+                            markStage(TuneTrace.STAGE_MANIFEST);
 
                             int[] variantIndices = null;
                             if (manifest instanceof HlsMasterPlaylist) {
@@ -230,12 +272,10 @@ public class TvInputPlayer implements TextRenderer {
                                         return Integer.compare(v2.format.bitrate, v1.format.bitrate);
                                     }
                                 });
-                                manifest = masterPlaylist = new HlsMasterPlaylist(masterPlaylist.baseUri,
-                                        variants, masterPlaylist.subtitles);
 
                                 try {
                                     variantIndices = VideoFormatSelectorUtil.selectVideoFormatsForDefaultDisplay(
-                                            context, masterPlaylist.variants, null, false);
+                                            context, variants, null, false);
                                 } catch (MediaCodecUtil.DecoderQueryException e) {
                                     for (Callback callback : callbacks) {
                                         callback.onPlayerError(new ExoPlaybackException(e));
@@ -249,14 +289,22 @@ public class TvInputPlayer implements TextRenderer {
                                     }
                                     return;
                                 }
+                                seedStartVariant(variants, variantIndices,
+                                        bandwidthMeter.getBitrateEstimate());
+                                manifest = new HlsMasterPlaylist(masterPlaylist.baseUri, variants,
+                                        masterPlaylist.subtitles);
                             }
+                            markStage(TuneTrace.STAGE_VARIANT_SELECTION);
 
-                            HlsChunkSource chunkSource = new HlsChunkSource(dataSource, uri.toString(),
+                            HlsChunkSource chunkSource = new HlsChunkSource(dataSource, mirror.getUrl(),
                                     manifest, bandwidthMeter,
                                     variantIndices, HlsChunkSource.ADAPTIVE_MODE_SPLICE);
 
-                            LoadControl lhc = new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE));
-                            HlsSampleSource sampleSource = new HlsSampleSource(chunkSource, lhc, BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE);
+                            // The live edge of HLS is fixed by HlsChunkSource, profiles only
+                            // change how much is buffered.
+                            LoadControl lhc = newLoadControl();
+                            HlsSampleSource sampleSource = new HlsSampleSource(chunkSource, lhc, bufferSegments * BUFFER_SEGMENT_SIZE,
+                                    handler, chunkLoadListener, 0);
                             audioRenderer = new MediaCodecAudioTrackRenderer(sampleSource);
                             videoRenderer = new MediaCodecVideoTrackRenderer(sampleSource,
                                     MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 0, handler,
@@ -272,131 +320,229 @@ public class TvInputPlayer implements TextRenderer {
                         }
 
                         @Override
-                        public void onSingleManifestError(IOException e) {
+                        public void onManifestError(IOException e) {
+                            if (released) {
+                                return;
+                            }
                             for (Callback callback : callbacks) {
                                 callback.onPlayerError(new ExoPlaybackException(e));
                             }
                         }
                     });
+            manifestRace.start(handler.getLooper());
         } else if (sourceType == SOURCE_TYPE_MPEG_DASH) {
-            MediaPresentationDescriptionParser parser = new MediaPresentationDescriptionParser();
-            final ManifestFetcher<MediaPresentationDescription> manifestFetcher =
-                    new ManifestFetcher<>(uri.toString(), dataSource, parser);
-            manifestFetcher.singleLoad(handler.getLooper(),
-                    new ManifestFetcher.ManifestCallback<MediaPresentationDescription>() {
+            List<StreamInfo> mirrors = getMirrors(context, streamInfo);
+            if (mirrors.size() == 1) {
+                mirror = declaredMirrors.get(mirrors.get(0));
+                prepareDash(context, userAgent,
+                        newDataSource(userAgent, mirrors.get(0), bandwidthMeter),
+                        mirrors.get(0).getUrl());
+                return;
+            }
+            manifestRace = new ManifestRace<>(mirrors, userAgent, bandwidthMeter,
+                    new MediaPresentationDescriptionParser(),
+                    new ManifestRace.Listener<MediaPresentationDescription>() {
                         @Override
-                        public void onSingleManifest(MediaPresentationDescription manifest) {
-                            Period period = manifest.getPeriod(0);
-                            LoadControl loadControl = new DefaultLoadControl(new DefaultAllocator(
-                                    BUFFER_SEGMENT_SIZE));
-
-                            // Determine which video representations we should use for playback.
-                            int maxDecodableFrameSize;
-                            try {
-                                maxDecodableFrameSize = MediaCodecUtil.maxH264DecodableFrameSize();
-                            } catch (MediaCodecUtil.DecoderQueryException e) {
-                                for (Callback callback : callbacks) {
-                                    callback.onPlayerError(new ExoPlaybackException(e));
-                                }
+                        public void onManifest(StreamInfo mirror,
+                                DefaultHttpDataSource dataSource,
+                                MediaPresentationDescription manifest) {
+                            if (released) {
                                 return;
                             }
+                            TvInputPlayer.this.mirror = declaredMirrors.get(mirror);
+                            // DashChunkSource refreshes live manifests through a ManifestFetcher,
+                            // which has to load the manifest itself.
+                            prepareDash(context, userAgent, dataSource, mirror.getUrl());
+                        }
 
-                            int videoAdaptationSetIndex = period.getAdaptationSetIndex(
-                                    AdaptationSet.TYPE_VIDEO);
-                            List<Representation> videoRepresentations =
-                                    period.adaptationSets.get(videoAdaptationSetIndex).representations;
-                            ArrayList<Integer> videoRepresentationIndexList = new ArrayList<>();
-                            for (int i = 0; i < videoRepresentations.size(); i++) {
-                                Format format = videoRepresentations.get(i).format;
-                                if (format.width * format.height > maxDecodableFrameSize) {
-                                    // Filtering stream that device cannot play
-                                } else if (!format.mimeType.equals(MimeTypes.VIDEO_MP4)
-                                        && !format.mimeType.equals(MimeTypes.VIDEO_WEBM)) {
-                                    // Filtering unsupported mime type
-                                } else {
-                                    videoRepresentationIndexList.add(i);
-                                }
+                        @Override
+                        public void onManifestError(IOException e) {
+                            if (released) {
+                                return;
                             }
-
-
-                            // Build the video renderer.
-                            if (videoRepresentationIndexList.isEmpty()) {
-                                videoRenderer = new DummyTrackRenderer();
-                            } else {
-                                DataSource videoDataSource = new DefaultUriDataSource(context, userAgent);
-                                DefaultBandwidthMeter videoBandwidthMeter = new DefaultBandwidthMeter();
-                                ChunkSource videoChunkSource = new DashChunkSource(manifestFetcher,
-                                        DefaultDashTrackSelector.newVideoInstance(context, true, false),
-                                        videoDataSource,
-                                        new FormatEvaluator.AdaptiveEvaluator(videoBandwidthMeter), LIVE_EDGE_LATENCY_MS,
-                                        0, true, null, null);
-                                ChunkSampleSource videoSampleSource = new ChunkSampleSource(
-                                        videoChunkSource, loadControl,
-                                        VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE);
-                                videoRenderer = new MediaCodecVideoTrackRenderer(videoSampleSource,
-                                        MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 0, handler,
-                                        videoRendererEventListener, 50);
+                            for (Callback callback : callbacks) {
+                                callback.onPlayerError(new ExoPlaybackException(e));
                             }
+                        }
+                    });
+            manifestRace.start(handler.getLooper());
+        } else {
+            throw new IllegalArgumentException("Unknown source type: " + sourceType);
+        }
+    }
 
-                            // Build the audio chunk sources.
-                            int audioAdaptationSetIndex = period.getAdaptationSetIndex(
-                                    AdaptationSet.TYPE_AUDIO);
-                            AdaptationSet audioAdaptationSet = period.adaptationSets.get(
-                                    audioAdaptationSetIndex);
-                            List<ChunkSource> audioChunkSourceList = new ArrayList<>();
-                            List<TvTrackInfo> audioTrackList = new ArrayList<>();
-                            if (audioAdaptationSet != null) {
-                                DataSource audioDataSource = new DefaultUriDataSource(context, userAgent);
-                                FormatEvaluator audioEvaluator = new FormatEvaluator.FixedEvaluator();
-                                List<Representation> audioRepresentations =
-                                        audioAdaptationSet.representations;
-                                for (int i = 0; i < audioRepresentations.size(); i++) {
-                                    Format format = audioRepresentations.get(i).format;
-                                    audioTrackList.add(new TvTrackInfo.Builder(TvTrackInfo.TYPE_AUDIO,
-                                            Integer.toString(i))
-                                            .setAudioChannelCount(format.audioChannels)
-                                            .setAudioSampleRate(format.audioSamplingRate)
-                                            .setLanguage(format.language)
-                                            .build());
-                                    audioChunkSourceList.add(new DashChunkSource(manifestFetcher,
-                                            DefaultDashTrackSelector.newAudioInstance(),
-                                            audioDataSource,
-                                            audioEvaluator, LIVE_EDGE_LATENCY_MS, 0, null, null));
-                                }
+    private void prepareDash(final Context context, final String userAgent,
+            DefaultHttpDataSource dataSource, String url) {
+        MediaPresentationDescriptionParser parser = new MediaPresentationDescriptionParser();
+        final ManifestFetcher<MediaPresentationDescription> manifestFetcher =
+                new ManifestFetcher<>(url, dataSource, parser);
+        manifestFetcher.singleLoad(handler.getLooper(),
+                new ManifestFetcher.ManifestCallback<MediaPresentationDescription>() {
+                    @Override
+                    public void onSingleManifest(MediaPresentationDescription manifest) {
+                        if (released) {
+                            return;
+                        }
+                        markStage(TuneTrace.STAGE_MANIFEST);
+                        Period period = manifest.getPeriod(0);
+                        LoadControl loadControl = newLoadControl();
+
+                        // Determine which video representations we should use for playback.
+                        int maxDecodableFrameSize;
+                        try {
+                            maxDecodableFrameSize = MediaCodecUtil.maxH264DecodableFrameSize();
+                        } catch (MediaCodecUtil.DecoderQueryException e) {
+                            for (Callback callback : callbacks) {
+                                callback.onPlayerError(new ExoPlaybackException(e));
                             }
+                            return;
+                        }
 
-                            // Build the audio renderer.
-                            //final MultiTrackChunkSource audioChunkSource;
-                            if (audioChunkSourceList.isEmpty()) {
-                                audioRenderer = new DummyTrackRenderer();
+                        int videoAdaptationSetIndex = period.getAdaptationSetIndex(
+                                AdaptationSet.TYPE_VIDEO);
+                        List<Representation> videoRepresentations =
+                                period.adaptationSets.get(videoAdaptationSetIndex).representations;
+                        ArrayList<Integer> videoRepresentationIndexList = new ArrayList<>();
+                        for (int i = 0; i < videoRepresentations.size(); i++) {
+                            Format format = videoRepresentations.get(i).format;
+                            if (format.width * format.height > maxDecodableFrameSize) {
+                                // Filtering stream that device cannot play
+                            } else if (!format.mimeType.equals(MimeTypes.VIDEO_MP4)
+                                    && !format.mimeType.equals(MimeTypes.VIDEO_WEBM)) {
+                                // Filtering unsupported mime type
                             } else {
-                                //audioChunkSource = new MultiTrackChunkSource(audioChunkSourceList);
-                                //SampleSource audioSampleSource = new ChunkSampleSource(audioChunkSource,
-                                //        loadControl, AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE);
-                                //audioRenderer = new MediaCodecAudioTrackRenderer(audioSampleSource);
-                                TvTrackInfo[] tracks = new TvTrackInfo[audioTrackList.size()];
-                                audioTrackList.toArray(tracks);
-                                tvTracks[TvTrackInfo.TYPE_AUDIO] = tracks;
-                                selectedTvTracks[TvTrackInfo.TYPE_AUDIO] = 0;
-                                //multiTrackChunkSources[TvTrackInfo.TYPE_AUDIO] = audioChunkSource;
+                                videoRepresentationIndexList.add(i);
                             }
+                        }
+                        markStage(TuneTrace.STAGE_VARIANT_SELECTION);
+
+
+                        // Build the video renderer.
+                        if (videoRepresentationIndexList.isEmpty()) {
+                            videoRenderer = new DummyTrackRenderer();
+                        } else {
+                            DataSource videoDataSource = new DefaultUriDataSource(context,
+                                    bandwidthMeter, userAgent);
+                            ChunkSource videoChunkSource = new DashChunkSource(manifestFetcher,
+                                    DefaultDashTrackSelector.newVideoInstance(context, true, false),
+                                    videoDataSource,
+                                    new FormatEvaluator.AdaptiveEvaluator(bandwidthMeter),
+                                    profile.liveEdgeLatencyMs,
+                                    0, true, null, null);
+                            ChunkSampleSource videoSampleSource = new ChunkSampleSource(
+                                    videoChunkSource, loadControl,
+                                    Math.min(VIDEO_BUFFER_SEGMENTS, bufferSegments)
+                                            * BUFFER_SEGMENT_SIZE, handler, chunkLoadListener,
+                                    0);
+                            videoRenderer = new MediaCodecVideoTrackRenderer(videoSampleSource,
+                                    MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 0, handler,
+                                    videoRendererEventListener, 50);
+                        }
 
-                            // Build the text renderer.
-                            textRenderer = new DummyTrackRenderer();
+                        // Build the audio chunk sources.
+                        int audioAdaptationSetIndex = period.getAdaptationSetIndex(
+                                AdaptationSet.TYPE_AUDIO);
+                        AdaptationSet audioAdaptationSet = period.adaptationSets.get(
+                                audioAdaptationSetIndex);
+                        List<ChunkSource> audioChunkSourceList = new ArrayList<>();
+                        List<TvTrackInfo> audioTrackList = new ArrayList<>();
+                        if (audioAdaptationSet != null) {
+                            DataSource audioDataSource = new DefaultUriDataSource(context,
+                                    bandwidthMeter, userAgent);
+                            FormatEvaluator audioEvaluator = new FormatEvaluator.FixedEvaluator();
+                            List<Representation> audioRepresentations =
+                                    audioAdaptationSet.representations;
+                            for (int i = 0; i < audioRepresentations.size(); i++) {
+                                Format format = audioRepresentations.get(i).format;
+                                audioTrackList.add(new TvTrackInfo.Builder(TvTrackInfo.TYPE_AUDIO,
+                                        Integer.toString(i))
+                                        .setAudioChannelCount(format.audioChannels)
+                                        .setAudioSampleRate(format.audioSamplingRate)
+                                        .setLanguage(format.language)
+                                        .build());
+                                audioChunkSourceList.add(new DashChunkSource(manifestFetcher,
+                                        DefaultDashTrackSelector.newAudioInstance(),
+                                        audioDataSource,
+                                        audioEvaluator, profile.liveEdgeLatencyMs, 0, null,
+                                        null));
+                            }
+                        }
 
-                            prepareInternal();
+                        // Build the audio renderer.
+                        //final MultiTrackChunkSource audioChunkSource;
+                        if (audioChunkSourceList.isEmpty()) {
+                            audioRenderer = new DummyTrackRenderer();
+                        } else {
+                            //audioChunkSource = new MultiTrackChunkSource(audioChunkSourceList);
+                            //SampleSource audioSampleSource = new ChunkSampleSource(audioChunkSource,
+                            //        loadControl, AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE);
+                            //audioRenderer = new MediaCodecAudioTrackRenderer(audioSampleSource);
+                            TvTrackInfo[] tracks = new TvTrackInfo[audioTrackList.size()];
+                            audioTrackList.toArray(tracks);
+                            tvTracks[TvTrackInfo.TYPE_AUDIO] = tracks;
+                            selectedTvTracks[TvTrackInfo.TYPE_AUDIO] = 0;
+                            //multiTrackChunkSources[TvTrackInfo.TYPE_AUDIO] = audioChunkSource;
                         }
 
-                        @Override
-                        public void onSingleManifestError(IOException e) {
-                            for (Callback callback : callbacks) {
-                                callback.onPlayerError(new ExoPlaybackException(e));
-                            }
+                        // Build the text renderer.
+                        textRenderer = new DummyTrackRenderer();
+
+                        prepareInternal();
+                    }
+
+                    @Override
+                    public void onSingleManifestError(IOException e) {
+                        if (released) {
+                            return;
                         }
-                    });
-        } else {
-            throw new IllegalArgumentException("Unknown source type: " + sourceType);
-        }
+                        for (Callback callback : callbacks) {
+                            callback.onPlayerError(new ExoPlaybackException(e));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Limits the media buffer to {@code bufferSegments} segments of 64 KB. Must be called before
+     * {@link #prepare}.
+     */
+    public void setBufferSegments(int bufferSegments) {
+        this.bufferSegments = Math.min(bufferSegments, profile.bufferSegments);
+    }
+
+    public PlaybackProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Returns the mirror of the prepared stream info which plays, that is the stream info of its
+     * primary or of one of its fallback URLs before redirects are applied, or {@code null} while
+     * the mirrors are raced.
+     */
+    public StreamInfo getMirror() {
+        return mirror;
+    }
+
+    /**
+     * Returns whether the media buffer is smaller than the profile's, see
+     * {@link #setBufferSegments}. The buffer size is fixed once prepared.
+     */
+    public boolean isBufferCapped() {
+        return bufferSegments < profile.bufferSegments;
+    }
+
+    /**
+     * Returns whether the renderers are built, so that {@link #getTracks} is final.
+     */
+    public boolean isPrepared() {
+        return prepared;
+    }
+
+    /**
+     * Sets the trace whose stages this player marks while preparing, or {@code null}.
+     */
+    public void setTuneTrace(TuneTrace tuneTrace) {
+        this.tuneTrace = tuneTrace;
     }
 
     public TvTrackInfo[] getTracks(int trackType) {
@@ -476,6 +622,10 @@ public class TvInputPlayer implements TextRenderer {
     }
 
     public void release() {
+        released = true;
+        if (manifestRace != null) {
+            manifestRace.cancel();
+        }
         player.release();
     }
 
@@ -495,11 +645,85 @@ public class TvInputPlayer implements TextRenderer {
                 surface);
         // Disable text track by default.
         player.setRendererEnabled(TvTrackInfo.TYPE_SUBTITLE, false);
+        prepared = true;
         for (Callback callback : callbacks) {
             callback.onPrepared();
         }
     }
 
+    private LoadControl newLoadControl() {
+        return new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE), null, null,
+                profile.lowWatermarkMs, profile.highWatermarkMs,
+                DefaultLoadControl.DEFAULT_LOW_BUFFER_LOAD,
+                DefaultLoadControl.DEFAULT_HIGH_BUFFER_LOAD);
+    }
+
+    private void markStage(int stage) {
+        if (tuneTrace != null) {
+            tuneTrace.mark(stage);
+        }
+    }
+
+    static DefaultHttpDataSource newDataSource(String userAgent, StreamInfo streamInfo,
+            TransferListener listener) {
+        DefaultHttpDataSource dataSource = new DefaultHttpDataSource(userAgent, null, listener);
+        for (Map.Entry<String, String> header : streamInfo.getHeaders().entrySet()) {
+            dataSource.setRequestProperty(header.getKey(), header.getValue());
+        }
+        return dataSource;
+    }
+
+    /**
+     * Moves the variant to start with to the front of {@code variants}, which are sorted by
+     * descending bitrate, since {@link HlsChunkSource} starts with the first listed variant. This
+     * is the best of the selected {@code variantIndices}, which are updated, that fits into the
+     * bandwidth estimate. Without an estimate the order is kept.
+     */
+    private static void seedStartVariant(List<Variant> variants, int[] variantIndices,
+            long bitrateEstimate) {
+        if (bitrateEstimate == BandwidthMeter.NO_ESTIMATE) {
+            return;
+        }
+        long usableBitrate = (long) (bitrateEstimate * START_BANDWIDTH_FRACTION);
+        int start = variantIndices[variantIndices.length - 1];
+        for (int index : variantIndices) {
+            if (index < start && variants.get(index).format.bitrate <= usableBitrate) {
+                start = index;
+            }
+        }
+        if (start == 0) {
+            return;
+        }
+        variants.add(0, variants.remove(start));
+        for (int i = 0; i < variantIndices.length; ++i) {
+            if (variantIndices[i] == start) {
+                variantIndices[i] = 0;
+            } else if (variantIndices[i] < start) {
+                variantIndices[i]++;
+            }
+        }
+    }
+
+    /**
+     * Returns the URLs of a stream to fetch the manifest from at once, fastest first. Known
+     * redirects are already applied.
+     */
+    private List<StreamInfo> getMirrors(Context context, StreamInfo streamInfo) {
+        List<StreamInfo> mirrors = new ArrayList<>();
+        addMirror(mirrors, streamInfo);
+        for (int i = 0; i < streamInfo.getFallbackUrls().size(); ++i) {
+            addMirror(mirrors, streamInfo.getFallback(i));
+        }
+        return MirrorStats.rank(mirrors,
+                context.getResources().getInteger(R.integer.mirror_race_count));
+    }
+
+    private void addMirror(List<StreamInfo> mirrors, StreamInfo declared) {
+        StreamInfo resolved = UrlResolver.getResolved(declared);
+        declaredMirrors.put(resolved, declared);
+        mirrors.add(resolved);
+    }
+
     private static String getUserAgent(Context context) {
         String versionName;
         try {
@@ -518,16 +742,45 @@ public class TvInputPlayer implements TextRenderer {
         return state != ExoPlayer.STATE_PREPARING && state != ExoPlayer.STATE_IDLE;
     }
 
-    private static Uri processUriParameters(Uri uri, DefaultHttpDataSource dataSource) {
-        String[] parameters = uri.getPath().split("\\|");
-        for (int i = 1; i < parameters.length; i++) {
-            String[] pair = parameters[i].split("=", 2);
-            if (pair.length == 2) {
-                dataSource.setRequestProperty(pair[0], pair[1]);
+    private class ChunkLoadListener implements HlsSampleSource.EventListener,
+            ChunkSampleSource.EventListener {
+
+        @Override
+        public void onLoadStarted(int sourceId, long length, int type, int trigger, Format format,
+                long mediaStartTimeMs, long mediaEndTimeMs) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onLoadCompleted(int sourceId, long bytesLoaded, int type, int trigger,
+                Format format, long mediaStartTimeMs, long mediaEndTimeMs,
+                long elapsedRealtimeMs, long loadDurationMs) {
+            if (type == Chunk.TYPE_MEDIA) {
+                markStage(TuneTrace.STAGE_FIRST_SEGMENT);
             }
         }
 
-        return uri.buildUpon().path(parameters[0]).build();
+        @Override
+        public void onLoadCanceled(int sourceId, long bytesLoaded) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onLoadError(int sourceId, IOException e) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onUpstreamDiscarded(int sourceId, long mediaStartTimeMs,
+                long mediaEndTimeMs) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onDownstreamFormatChanged(int sourceId, Format format, int trigger,
+                long mediaTimeMs) {
+            // Do nothing.
+        }
     }
 
     public interface Callback {
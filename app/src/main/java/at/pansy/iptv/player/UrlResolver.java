@@ -0,0 +1,270 @@
+package at.pansy.iptv.player;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import at.pansy.iptv.domain.StreamInfo;
+
+/**
+ * Process wide cache of where stream URLs redirect to. Portal URLs often redirect to a CDN URL
+ * with an access token, which every tune would otherwise follow again.
+ *
+ * <p>Entries are only filled by {@link #prefetch} in the background, which follows the redirects
+ * and resolves the host of the final URL, so that the system DNS cache holds it as well. Entries
+ * which were used recently are resolved again before they expire. Playing a resolved URL only
+ * looks up the cache, and entries are dropped on errors so that the next attempt follows the
+ * full chain.
+ */
+public class UrlResolver {
+
+    private static final String TAG = "UrlResolver";
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int READ_TIMEOUT_MS = 5000;
+    // Redirects without caching headers, which usually carry short lived tokens.
+    private static final long DEFAULT_TTL_MS = 5 * 60 * 1000L;  // 5 minutes
+    private static final long MAX_TTL_MS = 60 * 60 * 1000L;  // 1 hour
+    // Entries are resolved again this long before they expire.
+    private static final long REFRESH_MARGIN_MS = 30 * 1000L;
+    // Entries which weren't used for this long aren't refreshed anymore.
+    private static final long KEEP_WARM_MS = 10 * 60 * 1000L;  // 10 minutes
+
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age=(\\d+)");
+
+    private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private static final Set<String> PENDING =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final ScheduledExecutorService EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private UrlResolver() {}
+
+    /**
+     * Returns {@code streamInfo} with the URL it redirects to, if that is known and didn't
+     * expire. This doesn't do any I/O.
+     */
+    public static StreamInfo getResolved(StreamInfo streamInfo) {
+        String url = streamInfo.getUrl();
+        Entry entry = url != null ? ENTRIES.get(url) : null;
+        long nowMs = SystemClock.elapsedRealtime();
+        if (entry == null || nowMs >= entry.expiresAtMs) {
+            return streamInfo;
+        }
+        entry.lastUsedMs = nowMs;
+        if (entry.finalUrl.equals(url)) {
+            return streamInfo;
+        }
+        return new StreamInfo.Builder(streamInfo).setUrl(entry.finalUrl).build();
+    }
+
+    /**
+     * Resolves the URL of {@code streamInfo} in the background unless a fresh entry exists.
+     */
+    public static void prefetch(final StreamInfo streamInfo) {
+        final String url = streamInfo.getUrl();
+        if (url == null || !url.startsWith("http")) {
+            return;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        Entry entry = ENTRIES.get(url);
+        if (entry != null) {
+            entry.lastUsedMs = nowMs;
+            if (nowMs < entry.expiresAtMs - REFRESH_MARGIN_MS) {
+                return;
+            }
+        }
+        if (!PENDING.add(url)) {
+            return;
+        }
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resolve(streamInfo);
+                } finally {
+                    PENDING.remove(url);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the entries of {@code streamInfo} and its fallbacks, whether it is an original or a
+     * resolved stream info.
+     */
+    public static void invalidate(StreamInfo streamInfo) {
+        invalidate(streamInfo.getUrl());
+        for (int i = 0; i < streamInfo.getFallbackUrls().size(); ++i) {
+            invalidate(streamInfo.getFallback(i).getUrl());
+        }
+    }
+
+    public static void dump(PrintWriter writer) {
+        long nowMs = SystemClock.elapsedRealtime();
+        writer.println("Resolved URLs:");
+        for (Map.Entry<String, Entry> entry : ENTRIES.entrySet()) {
+            Entry value = entry.getValue();
+            writer.println("  " + entry.getKey() + " -> " + value.finalUrl + " "
+                    + Arrays.toString(value.addresses) + " expires in "
+                    + (value.expiresAtMs - nowMs) + "ms");
+        }
+    }
+
+    private static void invalidate(String url) {
+        if (url == null) {
+            return;
+        }
+        for (Map.Entry<String, Entry> entry : ENTRIES.entrySet()) {
+            if (entry.getKey().equals(url) || entry.getValue().finalUrl.equals(url)) {
+                ENTRIES.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Follows the redirects of a stream URL, resolves the final host and stores the result. Runs
+     * on the executor only.
+     *
+     * <p>Redirects are followed with {@code HEAD} requests so that live streams don't start
+     * sending media. Servers which reject {@code HEAD} get a {@code GET} of the first byte
+     * instead, like {@link at.pansy.iptv.util.StreamProbe} does.
+     */
+    private static void resolve(StreamInfo streamInfo) {
+        String url = streamInfo.getUrl();
+        long startMs = SystemClock.elapsedRealtime();
+        String currentUrl = url;
+        long ttlMs = MAX_TTL_MS;
+        boolean head = true;
+        try {
+            for (int redirects = 0; ; ++redirects) {
+                HttpURLConnection connection = openConnection(currentUrl, streamInfo, head);
+                String location;
+                try {
+                    int responseCode = connection.getResponseCode();
+                    if (responseCode >= 400 && head) {
+                        // Retry this hop and the following ones with a ranged GET.
+                        head = false;
+                        connection.disconnect();
+                        connection = openConnection(currentUrl, streamInfo, false);
+                        responseCode = connection.getResponseCode();
+                    }
+                    if (responseCode < 300 || responseCode >= 400) {
+                        if (responseCode >= 400) {
+                            Log.w(TAG, "Failed to resolve " + url + ": HTTP " + responseCode);
+                            invalidate(url);
+                            return;
+                        }
+                        break;
+                    }
+                    location = connection.getHeaderField("Location");
+                    ttlMs = Math.min(ttlMs, getTtlMs(connection, responseCode));
+                } finally {
+                    connection.disconnect();
+                }
+                if (location == null || redirects == MAX_REDIRECTS) {
+                    Log.w(TAG, "Failed to resolve " + url + ": too many or broken redirects");
+                    invalidate(url);
+                    return;
+                }
+                currentUrl = new URL(new URL(currentUrl), location).toString();
+            }
+            InetAddress[] addresses = InetAddress.getAllByName(new URL(currentUrl).getHost());
+            long nowMs = SystemClock.elapsedRealtime();
+            Entry previous = ENTRIES.get(url);
+            Entry entry = new Entry(currentUrl, addresses, nowMs + ttlMs,
+                    previous != null ? previous.lastUsedMs : nowMs);
+            ENTRIES.put(url, entry);
+            Log.d(TAG, "Resolved " + url + " in " + (nowMs - startMs) + "ms");
+            if (ttlMs > 2 * REFRESH_MARGIN_MS) {
+                scheduleRefresh(streamInfo, entry);
+            }
+        } catch (IOException | ClassCastException e) {
+            Log.w(TAG, "Failed to resolve " + url, e);
+            invalidate(url);
+        }
+    }
+
+    private static HttpURLConnection openConnection(String url, StreamInfo streamInfo,
+            boolean head) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        for (Map.Entry<String, String> header : streamInfo.getHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (head) {
+            connection.setRequestMethod("HEAD");
+        } else {
+            connection.setRequestProperty("Range", "bytes=0-0");
+        }
+        return connection;
+    }
+
+    private static void scheduleRefresh(final StreamInfo streamInfo, final Entry entry) {
+        long delayMs = Math.max(0,
+                entry.expiresAtMs - REFRESH_MARGIN_MS - SystemClock.elapsedRealtime());
+        EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Stop once a newer entry replaced this one or it wasn't used in a while.
+                if (ENTRIES.get(streamInfo.getUrl()) != entry) {
+                    return;
+                }
+                if (SystemClock.elapsedRealtime() - entry.lastUsedMs > KEEP_WARM_MS) {
+                    ENTRIES.remove(streamInfo.getUrl(), entry);
+                    return;
+                }
+                resolve(streamInfo);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static long getTtlMs(HttpURLConnection connection, int responseCode) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            if (cacheControl.contains("no-store") || cacheControl.contains("no-cache")) {
+                return 0;
+            }
+            Matcher matcher = MAX_AGE_PATTERN.matcher(cacheControl);
+            if (matcher.find()) {
+                return Math.min(MAX_TTL_MS, Long.parseLong(matcher.group(1)) * 1000);
+            }
+        }
+        boolean permanent = responseCode == HttpURLConnection.HTTP_MOVED_PERM
+                || responseCode == 308;
+        return permanent ? MAX_TTL_MS : DEFAULT_TTL_MS;
+    }
+
+    private static final class Entry {
+        final String finalUrl;
+        final InetAddress[] addresses;
+        final long expiresAtMs;
+        volatile long lastUsedMs;
+
+        Entry(String finalUrl, InetAddress[] addresses, long expiresAtMs, long lastUsedMs) {
+            this.finalUrl = finalUrl;
+            this.addresses = addresses;
+            this.expiresAtMs = expiresAtMs;
+            this.lastUsedMs = lastUsedMs;
+        }
+    }
+}
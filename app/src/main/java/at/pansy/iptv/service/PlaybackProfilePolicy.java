@@ -0,0 +1,173 @@
+package at.pansy.iptv.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import at.pansy.iptv.player.PlaybackProfile;
+import at.pansy.iptv.util.LatencyHistogram;
+
+/**
+ * Chooses the {@link PlaybackProfile} of each channel and keeps metrics per profile.
+ *
+ * <p>A channel plays the profile its feed entry names, if any. Otherwise it starts balanced and
+ * moves one profile towards robust when it stalls often, or towards low latency when it played
+ * long without stalls. The profile chosen for a channel is persisted, the stall counts it is based
+ * on are not. A session playing the channel applies a switch at its next stall or program
+ * boundary.
+ *
+ * <p>Playback is reported on the main thread, while {@link #dump} is called on a binder thread.
+ */
+class PlaybackProfilePolicy {
+
+    private static final String TAG = "PlaybackProfilePolicy";
+
+    private static final String PREFERENCES_NAME = "playback_profiles";
+    private static final String KEY_PREFIX_PROFILE = "profile_";
+
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+    // A channel needs this many stalls per hour of playback to become more robust, and fewer
+    // than the lower rate over a longer time to become lower latency again.
+    private static final float MAX_STALLS_PER_HOUR = 6;
+    private static final float MIN_STALLS_PER_HOUR = 0.5f;
+    private static final int MIN_STALLS = 3;
+    private static final long MIN_STABLE_PLAY_MS = 30 * 60 * 1000L;  // 30 minutes
+
+    private final SharedPreferences preferences;
+    // Playback of each channel since its profile last changed.
+    private final LongSparseArray<Window> windows = new LongSparseArray<>();
+    private final Metrics[] metrics = new Metrics[PlaybackProfile.ALL.length];
+
+    PlaybackProfilePolicy(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (int i = 0; i < metrics.length; ++i) {
+            metrics[i] = new Metrics();
+        }
+    }
+
+    /**
+     * Returns the profile to play a channel with.
+     *
+     * @param feedProfile The name of the profile the feed set for the channel, or {@code null}.
+     */
+    PlaybackProfile getProfile(long channelId, String feedProfile) {
+        PlaybackProfile profile = feedProfile != null ? PlaybackProfile.fromName(feedProfile)
+                : null;
+        if (profile == null) {
+            profile = PlaybackProfile.fromName(preferences.getString(
+                    KEY_PREFIX_PROFILE + channelId, PlaybackProfile.BALANCED.name));
+        }
+        return profile != null ? profile : PlaybackProfile.BALANCED;
+    }
+
+    synchronized void recordStartup(PlaybackProfile profile, long latencyMs) {
+        metrics[profile.index].startup.add(latencyMs);
+    }
+
+    /**
+     * Records a stall after playback started. A channel which plays its own choice of profile
+     * becomes more robust right away if it stalls too often.
+     */
+    void recordStall(long channelId, PlaybackProfile profile, boolean automatic) {
+        synchronized (this) {
+            metrics[profile.index].stalls++;
+        }
+        if (automatic) {
+            getWindow(channelId, profile).stalls++;
+            evaluate(channelId, profile);
+        }
+    }
+
+    synchronized void recordStallDuration(PlaybackProfile profile, long durationMs) {
+        metrics[profile.index].stallDuration.add(durationMs);
+    }
+
+    /**
+     * Records how long a channel played with {@code profile} until it stopped.
+     */
+    void recordPlayback(long channelId, PlaybackProfile profile, boolean automatic,
+            long durationMs) {
+        synchronized (this) {
+            metrics[profile.index].playMs += durationMs;
+        }
+        if (automatic) {
+            getWindow(channelId, profile).playMs += durationMs;
+            evaluate(channelId, profile);
+        }
+    }
+
+    /**
+     * Returns whether the profile of a channel is chosen here rather than by the feed.
+     */
+    static boolean isAutomatic(String feedProfile) {
+        return feedProfile == null || PlaybackProfile.fromName(feedProfile) == null;
+    }
+
+    private Window getWindow(long channelId, PlaybackProfile profile) {
+        Window window = windows.get(channelId);
+        if (window == null || window.profile != profile) {
+            window = new Window(profile);
+            windows.put(channelId, window);
+        }
+        return window;
+    }
+
+    private void evaluate(long channelId, PlaybackProfile profile) {
+        Window window = getWindow(channelId, profile);
+        // Less than a minute of playback counts as a minute, so that a few stalls right after
+        // the start don't make up a high rate.
+        float stallsPerHour = window.stalls * HOUR_MS / (float) Math.max(window.playMs, 60000);
+        int index = profile.index;
+        if (window.stalls >= MIN_STALLS && stallsPerHour > MAX_STALLS_PER_HOUR) {
+            index = Math.min(index + 1, PlaybackProfile.ALL.length - 1);
+        } else if (window.playMs >= MIN_STABLE_PLAY_MS && stallsPerHour < MIN_STALLS_PER_HOUR) {
+            index = Math.max(index - 1, 0);
+        }
+        if (index == profile.index) {
+            return;
+        }
+        PlaybackProfile next = PlaybackProfile.ALL[index];
+        Log.d(TAG, "Channel " + channelId + " switches from " + profile + " to " + next + " at "
+                + window.stalls + " stalls in " + window.playMs + "ms");
+        windows.remove(channelId);
+        preferences.edit().putString(KEY_PREFIX_PROFILE + channelId, next.name).apply();
+        synchronized (this) {
+            metrics[profile.index].switchesAway++;
+        }
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Playback profiles:");
+        for (PlaybackProfile profile : PlaybackProfile.ALL) {
+            Metrics m = metrics[profile.index];
+            float stallsPerHour = m.playMs > 0 ? m.stalls * HOUR_MS / (float) m.playMs : 0;
+            writer.println("  " + profile + ": played " + m.playMs / 1000 + "s, " + m.stalls
+                    + " stalls (" + String.format(Locale.US, "%.1f", stallsPerHour) + "/h), "
+                    + m.switchesAway + " channels switched away");
+            writer.println("    startup: " + m.startup);
+            writer.println("    stalls: " + m.stallDuration);
+        }
+    }
+
+    private static final class Window {
+        final PlaybackProfile profile;
+        int stalls;
+        long playMs;
+
+        Window(PlaybackProfile profile) {
+            this.profile = profile;
+        }
+    }
+
+    private static final class Metrics {
+        final LatencyHistogram startup = new LatencyHistogram();
+        final LatencyHistogram stallDuration = new LatencyHistogram();
+        long playMs;
+        int stalls;
+        int switchesAway;
+    }
+}
@@ -0,0 +1,160 @@
+package at.pansy.iptv.service;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.google.android.exoplayer.BehindLiveWindowException;
+import com.google.android.exoplayer.MediaCodecTrackRenderer;
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import at.pansy.iptv.domain.StreamInfo;
+
+/**
+ * Decides how a session recovers from playback errors of a stream: how long to wait before
+ * playing again and which of the stream's URLs to play.
+ *
+ * <p>Errors are charged to the mirror the player picked, see {@link
+ * at.pansy.iptv.player.TvInputPlayer#getMirror}. Transient errors, like timeouts and server
+ * errors, are retried on the same mirror with exponential backoff. Errors which won't go away by
+ * retrying, like client errors and unparsable manifests, exclude the mirror right away, so that
+ * the player races the remaining ones. Once all mirrors are excluded, all of them are tried again
+ * after a backoff. Decoder errors are caused by the device rather than the mirror, so they are
+ * only retried with backoff. Falling behind the live window rejoins at the live edge immediately.
+ */
+class RecoveryPolicy {
+
+    private static final String TAG = "RecoveryPolicy";
+
+    static final int ERROR_NETWORK = 0;
+    static final int ERROR_HTTP = 1;
+    static final int ERROR_DECODER = 2;
+    static final int ERROR_MANIFEST = 3;
+    static final int ERROR_BEHIND_LIVE_WINDOW = 4;
+    static final int ERROR_UNKNOWN = 5;
+
+    private static final String[] ERROR_NAMES = {
+            "network", "http", "decoder", "manifest", "behind_live_window", "unknown"
+    };
+
+    /** Returned by {@link #onError} when recovery should stop. */
+    static final long GIVE_UP = -1;
+
+    private static final long BASE_DELAY_MS = 500;
+    private static final long MAX_DELAY_MS = 16000;
+    private static final int MAX_ATTEMPTS = 12;
+    private static final int MAX_ATTEMPTS_PER_URL = 2;
+
+    private StreamInfo streamInfo;
+    // URLs of the mirrors which are excluded after errors.
+    private final Set<String> failedUrls = new HashSet<>();
+    // The mirror the last error was charged to, which urlAttempts count for.
+    private String errorUrl;
+    private int attempts;
+    private int urlAttempts;
+
+    /**
+     * Returns the stream info to play for {@code streamInfo}, which lacks the mirrors excluded
+     * after errors but keeps all others as fallbacks. Recovery starts over for a different
+     * stream.
+     */
+    StreamInfo getStreamInfo(StreamInfo streamInfo) {
+        if (!streamInfo.isSameStream(this.streamInfo)) {
+            this.streamInfo = streamInfo;
+            failedUrls.clear();
+            errorUrl = null;
+            attempts = 0;
+            urlAttempts = 0;
+        }
+        return streamInfo.withoutUrls(failedUrls);
+    }
+
+    /**
+     * Called when the stream plays, so that later errors start with a short delay again. The
+     * mirrors which failed stay excluded.
+     */
+    void onPlaying() {
+        attempts = 0;
+        urlAttempts = 0;
+    }
+
+    /**
+     * Returns the delay before playing again after {@code error}, or {@link #GIVE_UP}.
+     *
+     * @param mirror The mirror the player played, or {@code null} if it failed before it picked
+     *         one.
+     */
+    long onError(Exception error, StreamInfo mirror) {
+        int type = classify(error);
+        int urlCount = streamInfo != null ? streamInfo.getFallbackUrls().size() + 1 : 1;
+        if (++attempts > MAX_ATTEMPTS) {
+            Log.e(TAG, "Giving up after " + MAX_ATTEMPTS + " attempts", error);
+            return GIVE_UP;
+        }
+        if (type == ERROR_BEHIND_LIVE_WINDOW) {
+            Log.w(TAG, "Fell behind the live window, rejoining at the live edge");
+            return 0;
+        }
+        boolean persistent = type == ERROR_MANIFEST
+                || (type == ERROR_HTTP && isClientError(error));
+        String url = mirror != null ? mirror.getUrl() : null;
+        if (url == null || !url.equals(errorUrl)) {
+            errorUrl = url;
+            urlAttempts = 0;
+        }
+        // Without a mirror, all raced mirrors failed and MirrorStats ranks them down already.
+        // Another mirror won't help the decoder, it is retried on the same one.
+        boolean failOver = url != null && urlCount > 1 && type != ERROR_DECODER
+                && (persistent || ++urlAttempts >= MAX_ATTEMPTS_PER_URL);
+        boolean exhausted = false;
+        if (failOver) {
+            failedUrls.add(url);
+            urlAttempts = 0;
+            if (failedUrls.size() >= urlCount) {
+                failedUrls.clear();
+                exhausted = true;
+            }
+        }
+        // Try the remaining mirrors right away, back off once all of them failed.
+        long delayMs = failOver && !exhausted ? 0
+                : Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempts - 1, 16));
+        Log.w(TAG, ERROR_NAMES[type] + " error, attempt " + attempts + " on " + url + ", "
+                + failedUrls.size() + " of " + urlCount + " URLs excluded, retry in " + delayMs
+                + "ms", error);
+        return delayMs;
+    }
+
+    static int classify(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BehindLiveWindowException) {
+                return ERROR_BEHIND_LIVE_WINDOW;
+            } else if (cause instanceof HttpDataSource.InvalidResponseCodeException) {
+                return ERROR_HTTP;
+            } else if (cause instanceof ParserException) {
+                return ERROR_MANIFEST;
+            } else if (cause instanceof MediaCodecTrackRenderer.DecoderInitializationException
+                    || cause instanceof MediaCodec.CryptoException
+                    || cause instanceof MediaCodec.CodecException) {
+                return ERROR_DECODER;
+            } else if (cause instanceof IOException) {
+                return ERROR_NETWORK;
+            }
+        }
+        return ERROR_UNKNOWN;
+    }
+
+    private static boolean isClientError(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpDataSource.InvalidResponseCodeException) {
+                int responseCode = ((HttpDataSource.InvalidResponseCodeException) cause)
+                        .responseCode;
+                return responseCode >= 400 && responseCode < 500;
+            }
+        }
+        return false;
+    }
+}
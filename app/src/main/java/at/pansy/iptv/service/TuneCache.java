@@ -0,0 +1,363 @@
+package at.pansy.iptv.service;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import at.pansy.iptv.domain.Channel;
+import at.pansy.iptv.domain.PlaybackInfo;
+import at.pansy.iptv.util.TvContractUtil;
+import at.pansy.iptv.util.ViewingStats;
+
+/**
+ * In-memory cache of channel rows and the current and next programs of tuned channels, so that a
+ * tune can be served without querying TvProvider.
+ *
+ * <p>The cache observes the channel and program URIs and drops exactly the entries a change
+ * affects. Changed programs which aren't cached can belong to any channel, so they drop all
+ * program entries. Dropped entries are reloaded in the background once the changes settle.
+ * Whenever all channel rows are loaded, the programs of the most watched channels are loaded as
+ * well, so that their first tune is served from the cache too.
+ *
+ * <p>All methods are thread safe. Provider queries run on the handler given to the constructor
+ * or the calling thread, never while the cache is locked.
+ */
+public class TuneCache {
+
+    private static final String TAG = "TuneCache";
+
+    public static final long ALL_CHANNELS = -1;
+
+    // The current and the next program.
+    private static final int PROGRAM_COUNT = 2;
+    private static final long PROGRAM_WINDOW_MS = 12 * 60 * 60 * 1000L;  // 12 hours
+    private static final long REFILL_DELAY_MS = 1000;
+    // Channels whose programs are loaded along with all channel rows.
+    private static final int PREFILL_CHANNEL_COUNT = 30;
+
+    // The first path segment of channel and program URIs.
+    private static final String PATH_CHANNEL = "channel";
+    private static final String PATH_PROGRAM = "program";
+
+    private final ContentResolver resolver;
+    private final Handler handler;
+    private final String inputId;
+    private final ViewingStats viewingStats;
+
+    private final LongSparseArray<Channel> channels = new LongSparseArray<>();
+    private final LongSparseArray<List<PlaybackInfo>> programs = new LongSparseArray<>();
+    // Maps the ID of every cached program to its channel ID.
+    private final LongSparseArray<Long> programChannelIds = new LongSparseArray<>();
+    // Channels whose programs were dropped and should be reloaded.
+    private final LongSparseArray<Boolean> staleChannelIds = new LongSparseArray<>();
+    // Channel rows which were dropped and should be reloaded.
+    private final LongSparseArray<Boolean> staleChannelRowIds = new LongSparseArray<>();
+    private boolean channelsStale;
+    // Incremented on every invalidation, so that loads racing with a change aren't cached.
+    private int generation;
+
+    private final ContentObserver observer;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Runnable refillRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refill();
+        }
+    };
+
+    public TuneCache(ContentResolver resolver, Handler handler, String inputId,
+            ViewingStats viewingStats) {
+        this.resolver = resolver;
+        this.handler = handler;
+        this.inputId = inputId;
+        this.viewingStats = viewingStats;
+        observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate(uri);
+            }
+        };
+    }
+
+    /**
+     * Starts observing TvProvider and loads all channel rows and the programs of the most
+     * watched channels in the background.
+     */
+    public void start() {
+        resolver.registerContentObserver(TvContract.Channels.CONTENT_URI, true, observer);
+        resolver.registerContentObserver(TvContract.Programs.CONTENT_URI, true, observer);
+        synchronized (this) {
+            channelsStale = true;
+        }
+        handler.post(refillRunnable);
+    }
+
+    public void stop() {
+        resolver.unregisterContentObserver(observer);
+        handler.removeCallbacks(refillRunnable);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the cached program on air at {@code nowMs}, or {@code null} if it isn't cached.
+     */
+    public synchronized PlaybackInfo getPlaybackInfo(long channelId, long nowMs) {
+        List<PlaybackInfo> channelPrograms = programs.get(channelId);
+        if (channelPrograms == null) {
+            return null;
+        }
+        for (PlaybackInfo info : channelPrograms) {
+            if (info.startTimeMs <= nowMs && nowMs < info.endTimeMs) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached channel row, or {@code null} if it isn't cached.
+     */
+    public synchronized Channel getChannel(long channelId) {
+        return channels.get(channelId);
+    }
+
+    /**
+     * Returns all cached channel rows.
+     */
+    public synchronized List<Channel> getChannels() {
+        List<Channel> list = new ArrayList<>(channels.size());
+        for (int i = 0; i < channels.size(); ++i) {
+            list.add(channels.valueAt(i));
+        }
+        return list;
+    }
+
+    /**
+     * Queries the program on air at {@code nowMs} and caches it together with the next one.
+     * This must not be called on the main thread.
+     *
+     * @return The program on air, or {@code null} if there is none.
+     */
+    public PlaybackInfo loadPlaybackInfo(Uri channelUri, long nowMs) {
+        long channelId = ContentUris.parseId(channelUri);
+        int loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        List<PlaybackInfo> channelPrograms = TvContractUtil.getProgramPlaybackInfo(resolver,
+                channelUri, nowMs, nowMs + PROGRAM_WINDOW_MS, PROGRAM_COUNT);
+        synchronized (this) {
+            if (loadGeneration == generation && !channelPrograms.isEmpty()) {
+                removePrograms(channelId);
+                programs.put(channelId, channelPrograms);
+                for (PlaybackInfo info : channelPrograms) {
+                    if (info.programId != PlaybackInfo.NO_PROGRAM_ID) {
+                        programChannelIds.put(info.programId, channelId);
+                    }
+                }
+            }
+        }
+        for (PlaybackInfo info : channelPrograms) {
+            if (info.startTimeMs <= nowMs && nowMs < info.endTimeMs) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queries and caches the channel row. This must not be called on the main thread.
+     */
+    public Channel loadChannel(Uri channelUri) {
+        int loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        Channel channel = TvContractUtil.getChannel(resolver, channelUri);
+        synchronized (this) {
+            if (loadGeneration == generation && channel != null) {
+                channels.put(channel.getChannelId(), channel);
+            }
+        }
+        return channel;
+    }
+
+    private void invalidate(Uri uri) {
+        List<String> segments = uri != null ? uri.getPathSegments() : null;
+        if (segments != null && segments.size() == 3 && PATH_CHANNEL.equals(segments.get(0))) {
+            // A channel logo, nothing cached depends on it.
+            return;
+        }
+        long id = -1;
+        if (segments != null && segments.size() == 2) {
+            try {
+                id = Long.parseLong(segments.get(1));
+            } catch (NumberFormatException e) {
+                // Not a row URI.
+            }
+        }
+        long changedChannelId = ALL_CHANNELS;
+        synchronized (this) {
+            generation++;
+            String type = segments != null && !segments.isEmpty() ? segments.get(0) : null;
+            if (PATH_CHANNEL.equals(type) && id >= 0) {
+                changedChannelId = id;
+                channels.remove(id);
+                staleChannelRowIds.put(id, true);
+                if (programs.get(id) != null) {
+                    removePrograms(id);
+                    staleChannelIds.put(id, true);
+                }
+            } else if (PATH_PROGRAM.equals(type) && id >= 0
+                    && programChannelIds.get(id) != null) {
+                long channelId = programChannelIds.get(id);
+                changedChannelId = channelId;
+                removePrograms(channelId);
+                staleChannelIds.put(channelId, true);
+            } else {
+                // Anything else, including programs inserted into any channel.
+                for (int i = 0; i < programs.size(); ++i) {
+                    staleChannelIds.put(programs.keyAt(i), true);
+                }
+                programs.clear();
+                programChannelIds.clear();
+                if (!PATH_PROGRAM.equals(type)) {
+                    channels.clear();
+                    channelsStale = true;
+                }
+            }
+        }
+        // Changes come in bursts during a sync, reload once they settle.
+        handler.removeCallbacks(refillRunnable);
+        handler.postDelayed(refillRunnable, REFILL_DELAY_MS);
+        for (Listener listener : listeners) {
+            listener.onProgramsChanged(changedChannelId);
+        }
+    }
+
+    private void removePrograms(long channelId) {
+        List<PlaybackInfo> channelPrograms = programs.get(channelId);
+        if (channelPrograms == null) {
+            return;
+        }
+        for (PlaybackInfo info : channelPrograms) {
+            programChannelIds.remove(info.programId);
+        }
+        programs.remove(channelId);
+    }
+
+    private void refill() {
+        boolean reloadChannels;
+        long[] channelIds;
+        long[] channelRowIds;
+        synchronized (this) {
+            reloadChannels = channelsStale;
+            channelsStale = false;
+            channelIds = getKeys(staleChannelIds);
+            staleChannelIds.clear();
+            channelRowIds = reloadChannels ? new long[0] : getKeys(staleChannelRowIds);
+            staleChannelRowIds.clear();
+        }
+        for (long channelId : channelRowIds) {
+            loadChannel(TvContract.buildChannelUri(channelId));
+        }
+        if (reloadChannels) {
+            int loadGeneration;
+            synchronized (this) {
+                loadGeneration = generation;
+            }
+            List<Channel> inputChannels = TvContractUtil.getChannels(resolver, inputId);
+            synchronized (this) {
+                if (loadGeneration == generation) {
+                    channels.clear();
+                    for (Channel channel : inputChannels) {
+                        channels.put(channel.getChannelId(), channel);
+                    }
+                }
+            }
+            channelIds = addPrefillChannels(channelIds, inputChannels);
+        }
+        long nowMs = System.currentTimeMillis();
+        for (long channelId : channelIds) {
+            loadPlaybackInfo(TvContract.buildChannelUri(channelId), nowMs);
+        }
+        Log.d(TAG, "Refilled programs of " + channelIds.length + " channels and "
+                + (reloadChannels ? "all" : channelRowIds.length) + " channel rows");
+    }
+
+    /**
+     * Returns {@code channelIds} together with the most watched of {@code inputChannels} whose
+     * programs aren't cached. Channels which were never watched follow in channel order.
+     */
+    private long[] addPrefillChannels(long[] channelIds, List<Channel> inputChannels) {
+        long nowMs = System.currentTimeMillis();
+        final float[] priorities = new float[inputChannels.size()];
+        Integer[] order = new Integer[inputChannels.size()];
+        for (int i = 0; i < order.length; ++i) {
+            priorities[i] = viewingStats.getPriority(inputChannels.get(i).getChannelId(), nowMs);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Float.compare(priorities[rhs], priorities[lhs]);
+            }
+        });
+        LongSparseArray<Boolean> ids = new LongSparseArray<>();
+        for (long channelId : channelIds) {
+            ids.put(channelId, true);
+        }
+        synchronized (this) {
+            for (int i = 0; i < order.length && i < PREFILL_CHANNEL_COUNT; ++i) {
+                long channelId = inputChannels.get(order[i]).getChannelId();
+                if (programs.get(channelId) == null) {
+                    ids.put(channelId, true);
+                }
+            }
+        }
+        return getKeys(ids);
+    }
+
+    private static long[] getKeys(LongSparseArray<?> array) {
+        long[] keys = new long[array.size()];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = array.keyAt(i);
+        }
+        return keys;
+    }
+
+    /**
+     * Notified on the cache handler when programs or channels in TvProvider changed.
+     */
+    public interface Listener {
+        /**
+         * @param channelId The changed channel, or {@link #ALL_CHANNELS} if any channel may have
+         *         changed.
+         */
+        void onProgramsChanged(long channelId);
+    }
+}
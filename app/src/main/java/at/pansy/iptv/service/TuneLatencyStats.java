@@ -0,0 +1,88 @@
+package at.pansy.iptv.service;
+
+import android.os.Handler;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+import at.pansy.iptv.player.TuneTrace;
+import at.pansy.iptv.util.LatencyHistogram;
+import at.pansy.iptv.util.RollingLog;
+
+/**
+ * Aggregates the traces of completed tunes into global and per-channel latency histograms and
+ * keeps the most recent traces in a log file.
+ *
+ * <p>Traces are recorded on the main thread, while {@link #dump} is called on a binder thread.
+ */
+class TuneLatencyStats {
+
+    private static final String TAG = "TuneLatencyStats";
+
+    private static final int TUNE_HISTORY_SIZE = 200;
+
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram warmTotal = new LatencyHistogram();
+    private final LatencyHistogram coldTotal = new LatencyHistogram();
+    private final LatencyHistogram[] stages = new LatencyHistogram[TuneTrace.STAGE_COUNT];
+    private final LongSparseArray<LatencyHistogram> channels = new LongSparseArray<>();
+
+    private final RollingLog tuneHistory;
+    private final Handler ioHandler;
+
+    TuneLatencyStats(File historyFile, Handler ioHandler) {
+        this.ioHandler = ioHandler;
+        tuneHistory = new RollingLog(historyFile, TUNE_HISTORY_SIZE);
+        for (int i = 0; i < stages.length; ++i) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    void record(TuneTrace trace) {
+        final String entry = trace.toJson();
+        Log.d(TAG, "Tune finished: " + entry);
+        synchronized (this) {
+            long totalMs = trace.getTotalMs();
+            total.add(totalMs);
+            (trace.isWarm() ? warmTotal : coldTotal).add(totalMs);
+            for (int i = 0; i < stages.length; ++i) {
+                if (trace.isMarked(i)) {
+                    stages[i].add(trace.getStageDurationMs(i));
+                }
+            }
+            LatencyHistogram channel = channels.get(trace.getChannelId());
+            if (channel == null) {
+                channel = new LatencyHistogram();
+                channels.put(trace.getChannelId(), channel);
+            }
+            channel.add(totalMs);
+        }
+        ioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                tuneHistory.append(entry);
+            }
+        });
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Tune latency (onTune to first frame):");
+        writer.println("  all: " + total);
+        writer.println("  warm: " + warmTotal);
+        writer.println("  cold: " + coldTotal);
+        writer.println("Stages:");
+        for (int i = 0; i < stages.length; ++i) {
+            writer.println("  " + TuneTrace.STAGE_NAMES[i] + ": " + stages[i]);
+        }
+        writer.println("Channels:");
+        for (int i = 0; i < channels.size(); ++i) {
+            writer.println("  " + channels.keyAt(i) + ": " + channels.valueAt(i));
+        }
+        writer.println("Recent tunes:");
+        for (String line : tuneHistory.read()) {
+            writer.println("  " + line);
+        }
+    }
+}
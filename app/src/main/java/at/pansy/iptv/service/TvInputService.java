@@ -1,6 +1,7 @@
 package at.pansy.iptv.service;
 
 import android.content.BroadcastReceiver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -8,10 +9,14 @@ import android.media.tv.TvContentRating;
 import android.media.tv.TvInputManager;
 import android.media.tv.TvTrackInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.Surface;
 import android.view.View;
@@ -23,7 +28,11 @@ import com.google.android.exoplayer.text.CaptionStyleCompat;
 import com.google.android.exoplayer.text.Cue;
 import com.google.android.exoplayer.text.SubtitleLayout;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -32,9 +41,16 @@ import java.util.Set;
 import at.pansy.iptv.R;
 import at.pansy.iptv.domain.Channel;
 import at.pansy.iptv.domain.PlaybackInfo;
+import at.pansy.iptv.domain.StreamInfo;
+import at.pansy.iptv.player.PlaybackProfile;
+import at.pansy.iptv.player.TuneTrace;
 import at.pansy.iptv.player.TvInputPlayer;
+import at.pansy.iptv.player.UrlResolver;
+import at.pansy.iptv.util.ContentRatingTable;
+import at.pansy.iptv.util.StreamProbe;
 import at.pansy.iptv.util.SyncUtil;
 import at.pansy.iptv.util.TvContractUtil;
+import at.pansy.iptv.util.ViewingStats;
 
 /**
  * Created by notz.
@@ -43,11 +59,17 @@ public class TvInputService extends android.media.tv.TvInputService {
 
     private static final String TAG = "TvInputService";
 
+    private static final String TUNE_HISTORY_FILE_NAME = "tune_history.log";
+
     private HandlerThread handlerThread;
     private Handler dbHandler;
 
     private List<TvInputSession> sessions;
     private CaptioningManager captioningManager;
+    private ViewingStats viewingStats;
+    private TuneCache tuneCache;
+    private TuneLatencyStats tuneLatencyStats;
+    private PlaybackProfilePolicy playbackProfilePolicy;
 
     private final BroadcastReceiver parentalControlsBroadcastReceiver = new BroadcastReceiver() {
         @Override
@@ -67,6 +89,10 @@ public class TvInputService extends android.media.tv.TvInputService {
         handlerThread.start();
         dbHandler = new Handler(handlerThread.getLooper());
         captioningManager = (CaptioningManager) getSystemService(Context.CAPTIONING_SERVICE);
+        viewingStats = new ViewingStats(this);
+        tuneLatencyStats = new TuneLatencyStats(new File(getFilesDir(), TUNE_HISTORY_FILE_NAME),
+                dbHandler);
+        playbackProfilePolicy = new PlaybackProfilePolicy(this);
 
         setTheme(android.R.style.Theme_Holo_Light_NoActionBar);
 
@@ -81,13 +107,28 @@ public class TvInputService extends android.media.tv.TvInputService {
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(parentalControlsBroadcastReceiver);
+        if (tuneCache != null) {
+            tuneCache.stop();
+            tuneCache = null;
+        }
         handlerThread.quit();
         handlerThread = null;
         dbHandler = null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        tuneLatencyStats.dump(writer);
+        playbackProfilePolicy.dump(writer);
+        UrlResolver.dump(writer);
+    }
+
     @Override
     public final Session onCreateSession(String inputId) {
+        if (tuneCache == null) {
+            tuneCache = new TuneCache(getContentResolver(), dbHandler, inputId, viewingStats);
+            tuneCache.start();
+        }
         TvInputSession session = new TvInputSession(this, inputId);
         session.setOverlayViewEnabled(true);
         sessions.add(session);
@@ -97,6 +138,23 @@ public class TvInputService extends android.media.tv.TvInputService {
     class TvInputSession extends android.media.tv.TvInputService.Session implements Handler.Callback {
 
         private static final int MSG_PLAY_PROGRAM = 1000;
+        private static final int MSG_PROGRAM_BOUNDARY = 1001;
+        private static final int MSG_SCHEDULE_LOADED = 1002;
+        private static final int MSG_RECOVER = 1003;
+        private static final int MSG_STREAM_PROBED = 1004;
+
+        // Number of upcoming programs each session keeps, so that program boundaries don't need
+        // to query TvProvider.
+        private static final int LOOK_AHEAD_COUNT = 10;
+        private static final long LOOK_AHEAD_WINDOW_MS = 24 * 60 * 60 * 1000L;  // 24 hours
+        // The schedule is refreshed when fewer programs than this are left after the current one.
+        private static final int LOOK_AHEAD_LOW_WATER = 2;
+        private static final long SCHEDULE_REFRESH_DELAY_MS = 1000;
+
+        // A tune this soon after the previous one is treated as surfing and only played once no
+        // further tune followed within the settle time.
+        private static final long RAPID_TUNE_INTERVAL_MS = 1000;
+        private static final long TUNE_SETTLE_MS = 300;
 
         private final Context context;
         private final TvInputManager tvInputManager;
@@ -112,26 +170,29 @@ public class TvInputService extends android.media.tv.TvInputService {
         private boolean epgSyncRequested;
         private final Set<TvContentRating> unblockedRatingSet = new HashSet<>();
         private final Handler handler;
+        private final ZapAccelerator zapAccelerator;
+        private final RecoveryPolicy recoveryPolicy = new RecoveryPolicy();
+        private boolean firstFrameDrawn;
+        // Trace of the tune whose first frame is still pending, or null.
+        private TuneTrace tuneTrace;
+        // Incremented on every tune, so that programs looked up for earlier tunes are dropped.
+        private int tuneGeneration;
+        private long lastTuneMs;
+        // Playback of the current player for the profile metrics. The start is 0 while the
+        // player doesn't play and the stall start is 0 while it doesn't stall.
+        private long playingChannelId;
+        private boolean automaticProfile;
+        private long playingSinceMs;
+        private long stallStartMs;
+        // Channels whose stream is probed on tune, accessed on the main thread only.
+        private final Set<Long> probingChannels = new HashSet<>();
 
         private final TvInputPlayer.Callback playerCallback = new TvInputPlayer.Callback() {
 
-            private boolean firstFrameDrawn;
-
             @Override
             public void onPrepared() {
                 firstFrameDrawn = false;
-                List<TvTrackInfo> tracks = new ArrayList<>();
-                Collections.addAll(tracks, player.getTracks(TvTrackInfo.TYPE_AUDIO));
-                Collections.addAll(tracks, player.getTracks(TvTrackInfo.TYPE_VIDEO));
-                Collections.addAll(tracks, player.getTracks(TvTrackInfo.TYPE_SUBTITLE));
-
-                notifyTracksChanged(tracks);
-                notifyTrackSelected(TvTrackInfo.TYPE_AUDIO, player.getSelectedTrack(
-                        TvTrackInfo.TYPE_AUDIO));
-                notifyTrackSelected(TvTrackInfo.TYPE_VIDEO, player.getSelectedTrack(
-                        TvTrackInfo.TYPE_VIDEO));
-                notifyTrackSelected(TvTrackInfo.TYPE_SUBTITLE, player.getSelectedTrack(
-                        TvTrackInfo.TYPE_SUBTITLE));
+                notifyTracks();
             }
 
             @Override
@@ -139,9 +200,17 @@ public class TvInputService extends android.media.tv.TvInputService {
                 if (playWhenReady && playbackState == ExoPlayer.STATE_BUFFERING) {
                     if (firstFrameDrawn) {
                         notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_BUFFERING);
+                        onStall();
                     }
                 } else if (playWhenReady && playbackState == ExoPlayer.STATE_READY) {
                     notifyVideoAvailable();
+                    if (stallStartMs != 0) {
+                        long nowMs = SystemClock.elapsedRealtime();
+                        playbackProfilePolicy.recordStallDuration(player.getProfile(),
+                                nowMs - stallStartMs);
+                        stallStartMs = 0;
+                        playingSinceMs = nowMs;
+                    }
                 }
             }
 
@@ -152,13 +221,49 @@ public class TvInputService extends android.media.tv.TvInputService {
 
             @Override
             public void onPlayerError(ExoPlaybackException e) {
-                // Do nothing.
+                long delayMs = recoveryPolicy.onError(e, player.getMirror());
+                releasePlayer();
+                handler.removeMessages(MSG_RECOVER);
+                if (delayMs == RecoveryPolicy.GIVE_UP) {
+                    notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_UNKNOWN);
+                    return;
+                }
+                notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_BUFFERING);
+                handler.sendEmptyMessageDelayed(MSG_RECOVER, delayMs);
             }
 
             @Override
             public void onDrawnToSurface(Surface surface) {
                 firstFrameDrawn = true;
+                recoveryPolicy.onPlaying();
                 notifyVideoAvailable();
+                Uri channelUri = currentChannelUri;
+                if (playingSinceMs == 0 && stallStartMs == 0 && channelUri != null) {
+                    playingChannelId = ContentUris.parseId(channelUri);
+                    playingSinceMs = SystemClock.elapsedRealtime();
+                }
+                // The player of the previous channel may still draw until the new one plays.
+                if (tuneTrace != null && currentPlaybackInfo != null) {
+                    tuneTrace.mark(TuneTrace.STAGE_FIRST_FRAME);
+                    tuneLatencyStats.record(tuneTrace);
+                    playbackProfilePolicy.recordStartup(player.getProfile(),
+                            tuneTrace.getTotalMs());
+                    player.setTuneTrace(null);
+                    tuneTrace = null;
+                    // Keep the redirect of the stream resolved for retries and returning tunes.
+                    UrlResolver.prefetch(currentPlaybackInfo.streamInfo);
+                    if (channelUri != null) {
+                        final long channelId = ContentUris.parseId(channelUri);
+                        zapAccelerator.onChannelPlaying(channelId);
+                        // Only channels which played count, not the ones skipped while surfing.
+                        dbHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                viewingStats.recordTune(channelId, System.currentTimeMillis());
+                            }
+                        });
+                    }
+                }
             }
 
             @Override
@@ -176,6 +281,36 @@ public class TvInputService extends android.media.tv.TvInputService {
 
         private PlayCurrentProgramRunnable playCurrentProgramRunnable;
         private String inputId;
+        private volatile Uri currentChannelUri;
+        // Upcoming programs of the current channel, accessed on the main thread only.
+        private List<PlaybackInfo> schedule = Collections.emptyList();
+
+        private final Runnable refreshScheduleRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Uri channelUri = currentChannelUri;
+                if (channelUri == null) {
+                    return;
+                }
+                long nowMs = System.currentTimeMillis();
+                List<PlaybackInfo> programs = TvContractUtil.getProgramPlaybackInfo(
+                        context.getContentResolver(), channelUri, nowMs,
+                        nowMs + LOOK_AHEAD_WINDOW_MS, LOOK_AHEAD_COUNT);
+                handler.obtainMessage(MSG_SCHEDULE_LOADED, Pair.create(channelUri, programs))
+                        .sendToTarget();
+            }
+        };
+
+        private final TuneCache.Listener tuneCacheListener = new TuneCache.Listener() {
+            @Override
+            public void onProgramsChanged(long channelId) {
+                Uri channelUri = currentChannelUri;
+                if (channelUri != null && (channelId == TuneCache.ALL_CHANNELS
+                        || channelId == ContentUris.parseId(channelUri))) {
+                    refreshSchedule(SCHEDULE_REFRESH_DELAY_MS);
+                }
+            }
+        };
 
         protected TvInputSession(Context context, String inputId) {
             super(context);
@@ -186,13 +321,39 @@ public class TvInputService extends android.media.tv.TvInputService {
             lastBlockedRating = null;
             captionEnabled = captioningManager.isEnabled();
             handler = new Handler(this);
+            tuneCache.addListener(tuneCacheListener);
+            zapAccelerator = new ZapAccelerator(context, tuneCache, playbackProfilePolicy,
+                    dbHandler);
         }
 
         @Override
         public boolean handleMessage(Message msg) {
-            if (msg.what == MSG_PLAY_PROGRAM) {
-                playProgram((PlaybackInfo) msg.obj);
-                return true;
+            switch (msg.what) {
+                case MSG_PLAY_PROGRAM:
+                    if (msg.arg1 == tuneGeneration) {
+                        playProgram((PlaybackInfo) msg.obj, msg.arg2 != 0);
+                    }
+                    return true;
+                case MSG_PROGRAM_BOUNDARY:
+                    onProgramBoundary();
+                    return true;
+                case MSG_RECOVER:
+                    if (player == null && currentPlaybackInfo != null) {
+                        // Live streams start at the live edge again.
+                        playProgram(currentPlaybackInfo, false);
+                    }
+                    return true;
+                case MSG_SCHEDULE_LOADED:
+                    @SuppressWarnings("unchecked")
+                    Pair<Uri, List<PlaybackInfo>> result =
+                            (Pair<Uri, List<PlaybackInfo>>) msg.obj;
+                    onScheduleLoaded(result.first, result.second);
+                    return true;
+                case MSG_STREAM_PROBED:
+                    @SuppressWarnings("unchecked")
+                    Pair<Long, StreamInfo> probe = (Pair<Long, StreamInfo>) msg.obj;
+                    onStreamProbed(probe.first, probe.second);
+                    return true;
             }
             return false;
         }
@@ -201,7 +362,14 @@ public class TvInputService extends android.media.tv.TvInputService {
         public void onRelease() {
             if (dbHandler != null) {
                 dbHandler.removeCallbacks(playCurrentProgramRunnable);
+                dbHandler.removeCallbacks(refreshScheduleRunnable);
             }
+            if (tuneCache != null) {
+                tuneCache.removeListener(tuneCacheListener);
+            }
+            handler.removeCallbacksAndMessages(null);
+            currentChannelUri = null;
+            zapAccelerator.release();
             releasePlayer();
             sessions.remove(this);
         }
@@ -238,28 +406,255 @@ public class TvInputService extends android.media.tv.TvInputService {
             this.volume = volume;
         }
 
-        private boolean playProgram(PlaybackInfo info) {
+        /**
+         * Plays {@code info} on the current channel.
+         *
+         * @param programChange Whether {@code info} follows the program which played so far, in
+         *         which case a player of the same stream keeps playing. A tune always starts a
+         *         new player, so that the TV app sees it become available.
+         */
+        private boolean playProgram(PlaybackInfo info, boolean programChange) {
+            long nowMs = System.currentTimeMillis();
+            info = withChannelProbe(info);
+            if (programChange && player != null && currentPlaybackInfo != null
+                    && info.streamInfo.isSameStream(currentPlaybackInfo.streamInfo)
+                    && player.getProfile() == getChannelProfile()) {
+                // Live channels mostly keep their stream across programs, so keep playing and
+                // only apply the ratings of the new program. A pending tune trace stays with the
+                // player and completes on its first frame. A profile switch since the player
+                // started takes effect here instead.
+                setCurrentPlaybackInfo(info);
+                checkContentBlockNeeded();
+                scheduleProgramBoundary(info, nowMs);
+                return true;
+            }
+
             releasePlayer();
 
+            setCurrentPlaybackInfo(info);
+            long channelId = ContentUris.parseId(currentChannelUri);
+            StreamInfo channelStreamInfo = getChannelStreamInfo();
+            automaticProfile = PlaybackProfilePolicy.isAutomatic(channelStreamInfo != null
+                    ? channelStreamInfo.getPlaybackProfile() : null);
+            PlaybackProfile profile = getChannelProfile();
+            player = zapAccelerator.take(channelId, info, profile);
+            if (tuneTrace != null) {
+                // After a cache hit, the settle delay ends only now.
+                tuneTrace.mark(TuneTrace.STAGE_SETTLE);
+                tuneTrace.setWarm(player != null);
+            }
+            if (player != null) {
+                // A standby was prepared before this session listened to it.
+                player.setTuneTrace(tuneTrace);
+                player.addCallback(playerCallback);
+                firstFrameDrawn = false;
+                if (player.isPrepared()) {
+                    notifyTracks();
+                }
+                player.setSurface(surface);
+                player.setVolume(volume);
+            } else {
+                player = new TvInputPlayer(profile);
+                player.setTuneTrace(tuneTrace);
+                player.addCallback(playerCallback);
+                player.prepare(TvInputService.this,
+                        recoveryPolicy.getStreamInfo(info.streamInfo));
+                player.setSurface(surface);
+                player.setVolume(volume);
+
+                int seekPosMs = (int) (nowMs - info.startTimeMs);
+                if (seekPosMs > 0) {
+                    player.seekTo(seekPosMs);
+                }
+            }
+            player.setPlayWhenReady(true);
+
+            checkContentBlockNeeded();
+            scheduleProgramBoundary(info, nowMs);
+            return true;
+        }
+
+        /**
+         * Returns {@code info} with the stream type probed for the current channel. Channels
+         * which weren't probed by a sync yet are probed in the background.
+         */
+        private PlaybackInfo withChannelProbe(PlaybackInfo info) {
+            if (info.streamInfo.isProbed()) {
+                return info;
+            }
+            StreamInfo channelStreamInfo = getChannelStreamInfo();
+            if (channelStreamInfo == null) {
+                return info;
+            }
+            if (!channelStreamInfo.isProbed()) {
+                probeChannel(ContentUris.parseId(currentChannelUri), channelStreamInfo);
+                return info;
+            }
+            StreamInfo streamInfo = info.streamInfo.withProbeOf(channelStreamInfo);
+            return streamInfo == info.streamInfo ? info : new PlaybackInfo(info.programId,
+                    info.startTimeMs, info.endTimeMs, streamInfo, info.contentRatings);
+        }
+
+        /**
+         * Returns the profile to play the current channel with.
+         */
+        private PlaybackProfile getChannelProfile() {
+            if (currentChannelUri == null) {
+                return PlaybackProfile.BALANCED;
+            }
+            StreamInfo channelStreamInfo = getChannelStreamInfo();
+            return playbackProfilePolicy.getProfile(ContentUris.parseId(currentChannelUri),
+                    channelStreamInfo != null ? channelStreamInfo.getPlaybackProfile() : null);
+        }
+
+        /**
+         * Returns the cached stream info of the current channel, or {@code null}.
+         */
+        private StreamInfo getChannelStreamInfo() {
+            if (currentChannelUri == null) {
+                return null;
+            }
+            Channel channel = tuneCache.getChannel(ContentUris.parseId(currentChannelUri));
+            return channel != null ? StreamInfo.decode(channel.getInternalProviderData()) : null;
+        }
+
+        private void probeChannel(final long channelId, final StreamInfo streamInfo) {
+            if (streamInfo.getUrl() == null || !probingChannels.add(channelId)) {
+                return;
+            }
+            // Off the database thread, probing can take seconds.
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    StreamInfo probed = StreamProbe.probe(streamInfo);
+                    Handler db = dbHandler;
+                    if (probed != streamInfo && db != null) {
+                        final LongSparseArray<StreamInfo> streamInfos = new LongSparseArray<>();
+                        streamInfos.put(channelId, probed);
+                        // A sync may have changed the row meanwhile, merge on the database
+                        // thread.
+                        db.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                TvContractUtil.updateChannelProbes(context.getContentResolver(),
+                                        streamInfos);
+                            }
+                        });
+                    }
+                    handler.obtainMessage(MSG_STREAM_PROBED, Pair.create(channelId, probed))
+                            .sendToTarget();
+                }
+            });
+        }
+
+        private void onStreamProbed(long channelId, StreamInfo probed) {
+            if (probed.isProbed()) {
+                // Streams which failed to probe aren't probed again by this session.
+                probingChannels.remove(channelId);
+            }
+            if (currentChannelUri == null
+                    || ContentUris.parseId(currentChannelUri) != channelId
+                    || currentPlaybackInfo == null || firstFrameDrawn) {
+                return;
+            }
+            StreamInfo streamInfo = currentPlaybackInfo.streamInfo.withProbeOf(probed);
+            if (streamInfo.getType() != currentPlaybackInfo.streamInfo.getType()) {
+                // The declared type was wrong and the tune likely fails, play the right one.
+                Log.d(TAG, "Replaying " + streamInfo.getUrl() + " as type "
+                        + streamInfo.getType());
+                releasePlayer();
+                playProgram(new PlaybackInfo(currentPlaybackInfo.programId,
+                        currentPlaybackInfo.startTimeMs, currentPlaybackInfo.endTimeMs,
+                        streamInfo, currentPlaybackInfo.contentRatings), false);
+            }
+        }
+
+        private void notifyTracks() {
+            List<TvTrackInfo> tracks = new ArrayList<>();
+            Collections.addAll(tracks, player.getTracks(TvTrackInfo.TYPE_AUDIO));
+            Collections.addAll(tracks, player.getTracks(TvTrackInfo.TYPE_VIDEO));
+            Collections.addAll(tracks, player.getTracks(TvTrackInfo.TYPE_SUBTITLE));
+
+            notifyTracksChanged(tracks);
+            notifyTrackSelected(TvTrackInfo.TYPE_AUDIO, player.getSelectedTrack(
+                    TvTrackInfo.TYPE_AUDIO));
+            notifyTrackSelected(TvTrackInfo.TYPE_VIDEO, player.getSelectedTrack(
+                    TvTrackInfo.TYPE_VIDEO));
+            notifyTrackSelected(TvTrackInfo.TYPE_SUBTITLE, player.getSelectedTrack(
+                    TvTrackInfo.TYPE_SUBTITLE));
+        }
+
+        private void setCurrentPlaybackInfo(PlaybackInfo info) {
             currentPlaybackInfo = info;
             currentContentRating = (info.contentRatings == null || info.contentRatings.length == 0)
                     ? null : info.contentRatings[0];
-            player = new TvInputPlayer();
-            player.addCallback(playerCallback);
-            player.prepare(TvInputService.this, Uri.parse(info.videoUrl), info.videoType);
-            player.setSurface(surface);
-            player.setVolume(volume);
+        }
+
+        private void scheduleProgramBoundary(PlaybackInfo info, long nowMs) {
+            handler.removeMessages(MSG_PROGRAM_BOUNDARY);
+            handler.sendEmptyMessageDelayed(MSG_PROGRAM_BOUNDARY, info.endTimeMs - nowMs);
+        }
 
+        private void onProgramBoundary() {
             long nowMs = System.currentTimeMillis();
-            int seekPosMs = (int) (nowMs - info.startTimeMs);
-            if (seekPosMs > 0) {
-                player.seekTo(seekPosMs);
+            PlaybackInfo next = null;
+            int remaining = 0;
+            for (PlaybackInfo info : schedule) {
+                if (info.endTimeMs <= nowMs) {
+                    continue;
+                }
+                if (next == null && info.startTimeMs <= nowMs) {
+                    next = info;
+                } else {
+                    remaining++;
+                }
             }
-            player.setPlayWhenReady(true);
+            if (next == null) {
+                // The schedule ran out or has a gap, fall back to a query.
+                dbHandler.removeCallbacks(playCurrentProgramRunnable);
+                playCurrentProgramRunnable = new PlayCurrentProgramRunnable(currentChannelUri,
+                        tuneGeneration, null, true);
+                dbHandler.post(playCurrentProgramRunnable);
+            } else {
+                playProgram(next, true);
+            }
+            if (remaining < LOOK_AHEAD_LOW_WATER) {
+                refreshSchedule(0);
+            }
+        }
 
-            checkContentBlockNeeded();
-            dbHandler.postDelayed(playCurrentProgramRunnable, info.endTimeMs - nowMs + 1000);
-            return true;
+        private void onScheduleLoaded(Uri channelUri, List<PlaybackInfo> programs) {
+            if (!channelUri.equals(currentChannelUri)) {
+                return;
+            }
+            schedule = programs;
+            if (currentPlaybackInfo == null) {
+                // The tune didn't play yet, it looks up the program on air itself.
+                return;
+            }
+            // Apply changes of the program on air, e.g. a new rating.
+            long nowMs = System.currentTimeMillis();
+            for (PlaybackInfo info : programs) {
+                if (info.startTimeMs <= nowMs && nowMs < info.endTimeMs) {
+                    if (!isSameProgram(withChannelProbe(info), currentPlaybackInfo)) {
+                        playProgram(info, true);
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void refreshSchedule(long delayMs) {
+            dbHandler.removeCallbacks(refreshScheduleRunnable);
+            dbHandler.postDelayed(refreshScheduleRunnable, delayMs);
+        }
+
+        private boolean isSameProgram(PlaybackInfo info, PlaybackInfo other) {
+            return info.programId == other.programId
+                    && info.startTimeMs == other.startTimeMs
+                    && info.endTimeMs == other.endTimeMs
+                    && Arrays.equals(info.contentRatings, other.contentRatings)
+                    && info.streamInfo.isSameStream(other.streamInfo);
         }
 
         @Override
@@ -269,10 +664,40 @@ public class TvInputService extends android.media.tv.TvInputService {
             }
             notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
             unblockedRatingSet.clear();
+            long tuneMs = SystemClock.elapsedRealtime();
+            boolean surfing = tuneMs - lastTuneMs < RAPID_TUNE_INTERVAL_MS;
+            long delayMs = surfing ? TUNE_SETTLE_MS : 0;
+            lastTuneMs = tuneMs;
+            tuneGeneration++;
 
             dbHandler.removeCallbacks(playCurrentProgramRunnable);
-            playCurrentProgramRunnable = new PlayCurrentProgramRunnable(channelUri);
-            dbHandler.post(playCurrentProgramRunnable);
+            handler.removeMessages(MSG_PLAY_PROGRAM);
+            handler.removeMessages(MSG_PROGRAM_BOUNDARY);
+            handler.removeMessages(MSG_SCHEDULE_LOADED);
+            handler.removeMessages(MSG_RECOVER);
+            if (surfing) {
+                // Free the decoders and stop downloading, the channel is likely skipped.
+                releasePlayer();
+            }
+            currentChannelUri = channelUri;
+            // Until the program of the new channel plays, nothing may compare against the old one.
+            currentPlaybackInfo = null;
+            schedule = Collections.emptyList();
+            refreshSchedule(delayMs);
+            final long channelId = ContentUris.parseId(channelUri);
+            tuneTrace = new TuneTrace(channelId);
+            playCurrentProgramRunnable = new PlayCurrentProgramRunnable(channelUri,
+                    tuneGeneration, tuneTrace, false);
+            PlaybackInfo info = tuneCache.getPlaybackInfo(channelId, System.currentTimeMillis());
+            if (info != null) {
+                // Cache hit, play without querying TvProvider.
+                tuneTrace.mark(TuneTrace.STAGE_PROVIDER_LOOKUP);
+                handler.sendMessageDelayed(
+                        handler.obtainMessage(MSG_PLAY_PROGRAM, tuneGeneration, 0, info),
+                        delayMs);
+            } else {
+                dbHandler.postDelayed(playCurrentProgramRunnable, delayMs);
+            }
             return true;
         }
 
@@ -317,8 +742,53 @@ public class TvInputService extends android.media.tv.TvInputService {
             }
         }
 
+        private void onStall() {
+            if (stallStartMs != 0) {
+                return;
+            }
+            if (player.isBufferCapped()) {
+                // A handed over standby stalls on its small buffer rather than on its profile,
+                // play the channel with the full buffer instead.
+                Log.d(TAG, "Replacing the standby player of " + currentChannelUri);
+                replacePlayer();
+                return;
+            }
+            recordPlayback();
+            stallStartMs = SystemClock.elapsedRealtime();
+            playbackProfilePolicy.recordStall(playingChannelId, player.getProfile(),
+                    automaticProfile);
+            PlaybackProfile profile = getChannelProfile();
+            if (profile != player.getProfile()) {
+                // The channel switched profiles, and playback stopped anyway.
+                Log.d(TAG, "Replaying " + currentChannelUri + " with profile " + profile);
+                replacePlayer();
+            }
+        }
+
+        /**
+         * Plays the current program with a new player, which picks up the current profile.
+         */
+        private void replacePlayer() {
+            releasePlayer();
+            handler.removeMessages(MSG_RECOVER);
+            handler.sendEmptyMessage(MSG_RECOVER);
+        }
+
+        /**
+         * Records the playback since it started or last resumed.
+         */
+        private void recordPlayback() {
+            if (playingSinceMs != 0) {
+                playbackProfilePolicy.recordPlayback(playingChannelId, player.getProfile(),
+                        automaticProfile, SystemClock.elapsedRealtime() - playingSinceMs);
+                playingSinceMs = 0;
+            }
+        }
+
         private void releasePlayer() {
             if (player != null) {
+                recordPlayback();
+                stallStartMs = 0;
                 player.removeCallback(playerCallback);
                 player.setSurface(null);
                 player.stop();
@@ -356,7 +826,7 @@ public class TvInputService extends android.media.tv.TvInputService {
                     unblockedRatingSet.add(rating);
                 }
                 if (player == null && currentPlaybackInfo != null) {
-                    playProgram(currentPlaybackInfo);
+                    playProgram(currentPlaybackInfo, false);
                 }
                 notifyContentAllowed();
             }
@@ -366,17 +836,31 @@ public class TvInputService extends android.media.tv.TvInputService {
 
             private static final int RETRY_DELAY_MS = 2000;
             private final Uri mChannelUri;
+            private final int mTuneGeneration;
+            // Marked on this thread, it only reaches the main thread with the message below.
+            private final TuneTrace mTuneTrace;
+            private final boolean mProgramChange;
 
-            public PlayCurrentProgramRunnable(Uri channelUri) {
+            public PlayCurrentProgramRunnable(Uri channelUri, int tuneGeneration,
+                    TuneTrace tuneTrace, boolean programChange) {
                 mChannelUri = channelUri;
+                mTuneGeneration = tuneGeneration;
+                mTuneTrace = tuneTrace;
+                mProgramChange = programChange;
             }
 
             @Override
             public void run() {
+                if (mTuneTrace != null) {
+                    mTuneTrace.mark(TuneTrace.STAGE_SETTLE);
+                }
                 long nowMs = System.currentTimeMillis();
-                List<PlaybackInfo> programs = TvContractUtil.getProgramPlaybackInfo(
-                        context.getContentResolver(), mChannelUri, nowMs, nowMs + 1, 1);
-                if (programs.isEmpty()) {
+                long channelId = ContentUris.parseId(mChannelUri);
+                PlaybackInfo info = tuneCache.getPlaybackInfo(channelId, nowMs);
+                if (info == null) {
+                    info = tuneCache.loadPlaybackInfo(mChannelUri, nowMs);
+                }
+                if (info == null) {
                     Log.w(TAG, "Failed to get program info for " + mChannelUri + ". Retry in " +
                             RETRY_DELAY_MS + "ms.");
                     if (!epgSyncRequested) {
@@ -384,19 +868,29 @@ public class TvInputService extends android.media.tv.TvInputService {
                         epgSyncRequested = true;
                     }
 
-                    String url = null;
+                    StreamInfo streamInfo = null;
 
-                    Channel channel = TvContractUtil.getChannel(context.getContentResolver(), mChannelUri);
+                    Channel channel = tuneCache.getChannel(channelId);
+                    if (channel == null) {
+                        channel = tuneCache.loadChannel(mChannelUri);
+                    }
                     if (channel != null) {
-                        url = channel.getInternalProviderData();
+                        streamInfo = StreamInfo.decode(channel.getInternalProviderData());
                     }
-                    PlaybackInfo playbackInfo = new PlaybackInfo(nowMs, nowMs + 3600 * 1000l,
-                            url, 1, new TvContentRating[] {});
-                    programs.add(playbackInfo);
+                    if (streamInfo == null || streamInfo.getUrl() == null) {
+                        Log.w(TAG, "No stream for " + mChannelUri);
+                        return;
+                    }
+                    info = new PlaybackInfo(nowMs, nowMs + 3600 * 1000l, streamInfo,
+                            ContentRatingTable.EMPTY);
                 }
 
-                handler.removeMessages(MSG_PLAY_PROGRAM);
-                handler.obtainMessage(MSG_PLAY_PROGRAM, programs.get(0)).sendToTarget();
+                if (mTuneTrace != null) {
+                    mTuneTrace.mark(TuneTrace.STAGE_PROVIDER_LOOKUP);
+                }
+                // Messages of newer tunes may already be queued, stale ones are dropped instead.
+                handler.obtainMessage(MSG_PLAY_PROGRAM, mTuneGeneration, mProgramChange ? 1 : 0,
+                        info).sendToTarget();
             }
         }
     }
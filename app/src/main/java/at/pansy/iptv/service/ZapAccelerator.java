@@ -0,0 +1,336 @@
+package at.pansy.iptv.service;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.media.tv.TvContract;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LongSparseArray;
+import android.view.Surface;
+
+import com.google.android.exoplayer.ExoPlaybackException;
+import com.google.android.exoplayer.text.Cue;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import at.pansy.iptv.R;
+import at.pansy.iptv.domain.Channel;
+import at.pansy.iptv.domain.PlaybackInfo;
+import at.pansy.iptv.domain.StreamInfo;
+import at.pansy.iptv.player.PlaybackProfile;
+import at.pansy.iptv.player.TvInputPlayer;
+import at.pansy.iptv.player.UrlResolver;
+import at.pansy.iptv.util.ContentRatingTable;
+
+/**
+ * Keeps players of the channels next to the tuned one prepared, so that surfing up or down can
+ * start from a filled buffer instead of fetching the manifest and the first segments first.
+ * Independent of that, the redirects and hosts of a few more neighbours are resolved ahead, see
+ * {@link UrlResolver}.
+ *
+ * <p>Standby players have no surface, are muted and don't play. They play the probed stream of
+ * their channel with the profile the channel would be tuned with, but their buffer is capped,
+ * which also caps what they download once it is full. A standby which is handed over keeps the
+ * capped buffer, so the session replaces it on its first stall, see
+ * {@link TvInputPlayer#isBufferCapped}. Standbys are recreated after a while so that live streams
+ * don't fall behind. All methods except the neighbour lookup run on the main thread.
+ */
+class ZapAccelerator {
+
+    private static final String TAG = "ZapAccelerator";
+
+    private static final long NO_CHANNEL = -1;
+    private static final long DEFAULT_PROGRAM_DURATION_MS = 60 * 60 * 1000L;  // 1 hour
+
+    private final Context context;
+    private final TuneCache tuneCache;
+    private final PlaybackProfilePolicy playbackProfilePolicy;
+    private final Handler dbHandler;
+    private final Handler handler;
+
+    private final boolean enabled;
+    private final int prefetchCount;
+    private final int standbyCount;
+    private final int bufferSegments;
+    private final long maxStandbyAgeMs;
+
+    private final LongSparseArray<Standby> standbys = new LongSparseArray<>();
+    private long tunedChannelId = NO_CHANNEL;
+    // Incremented on every tune, so that outdated neighbour lookups are dropped.
+    private int generation;
+
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (tunedChannelId != NO_CHANNEL) {
+                onChannelPlaying(tunedChannelId);
+            }
+        }
+    };
+
+    ZapAccelerator(Context context, TuneCache tuneCache,
+            PlaybackProfilePolicy playbackProfilePolicy, Handler dbHandler) {
+        this.context = context;
+        this.tuneCache = tuneCache;
+        this.playbackProfilePolicy = playbackProfilePolicy;
+        this.dbHandler = dbHandler;
+        handler = new Handler();
+        Resources resources = context.getResources();
+        enabled = resources.getBoolean(R.bool.zap_accelerator_enabled);
+        prefetchCount = resources.getInteger(R.integer.zap_prefetch_count);
+        standbyCount = resources.getInteger(R.integer.zap_standby_count);
+        bufferSegments = resources.getInteger(R.integer.zap_standby_buffer_segments);
+        maxStandbyAgeMs = resources.getInteger(R.integer.zap_standby_max_age_ms);
+    }
+
+    /**
+     * Resolves the URLs of the neighbours of a channel and prepares standby players of the
+     * closest ones once it plays. Standby players of other channels are released.
+     */
+    void onChannelPlaying(final long channelId) {
+        if (!enabled && prefetchCount == 0) {
+            return;
+        }
+        tunedChannelId = channelId;
+        final int lookupGeneration = ++generation;
+        handler.removeCallbacks(refreshRunnable);
+        dbHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                LongSparseArray<PlaybackInfo> prefetched = findNeighbours(channelId,
+                        prefetchCount);
+                for (int i = 0; i < prefetched.size(); ++i) {
+                    UrlResolver.prefetch(prefetched.valueAt(i).streamInfo);
+                }
+                if (!enabled) {
+                    return;
+                }
+                final LongSparseArray<PlaybackInfo> neighbours = findNeighbours(channelId,
+                        standbyCount);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (lookupGeneration == generation) {
+                            updateStandbys(neighbours);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Hands over the standby player of a channel, if there is a recent one playing the stream of
+     * {@code info} with {@code profile}. The caller owns the returned player.
+     */
+    TvInputPlayer take(long channelId, PlaybackInfo info, PlaybackProfile profile) {
+        Standby standby = standbys.get(channelId);
+        if (standby == null) {
+            return null;
+        }
+        standbys.remove(channelId);
+        if (!standby.info.streamInfo.isSameStream(info.streamInfo) || standby.isExpired()
+                || standby.player.getProfile() != profile) {
+            standby.release();
+            return null;
+        }
+        standby.player.removeCallback(standby);
+        return standby.player;
+    }
+
+    void release() {
+        generation++;
+        tunedChannelId = NO_CHANNEL;
+        handler.removeCallbacks(refreshRunnable);
+        for (int i = 0; i < standbys.size(); ++i) {
+            standbys.valueAt(i).release();
+        }
+        standbys.clear();
+    }
+
+    private void updateStandbys(LongSparseArray<PlaybackInfo> neighbours) {
+        for (int i = standbys.size() - 1; i >= 0; --i) {
+            Standby standby = standbys.valueAt(i);
+            PlaybackInfo info = neighbours.get(standbys.keyAt(i));
+            if (info == null || !info.streamInfo.isSameStream(standby.info.streamInfo)
+                    || standby.isExpired()) {
+                standby.release();
+                standbys.removeAt(i);
+            }
+        }
+        for (int i = 0; i < neighbours.size(); ++i) {
+            long channelId = neighbours.keyAt(i);
+            if (standbys.get(channelId) == null) {
+                standbys.put(channelId, new Standby(channelId, neighbours.valueAt(i)));
+            }
+        }
+        handler.postDelayed(refreshRunnable, maxStandbyAgeMs);
+    }
+
+    /**
+     * Returns the programs on air of up to {@code count} channels next to {@code channelId} by
+     * display number, alternating up and down. This queries TvProvider and must not be called on
+     * the main thread.
+     */
+    private LongSparseArray<PlaybackInfo> findNeighbours(long channelId, int count) {
+        LongSparseArray<PlaybackInfo> neighbours = new LongSparseArray<>();
+        List<Channel> channels = tuneCache.getChannels();
+        Collections.sort(channels, DISPLAY_NUMBER_ORDER);
+        int index = -1;
+        for (int i = 0; i < channels.size(); ++i) {
+            if (channels.get(i).getChannelId() == channelId) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return neighbours;
+        }
+        count = Math.min(count, channels.size() - 1);
+        long nowMs = System.currentTimeMillis();
+        for (int i = 0; i < 2 * channels.size() && neighbours.size() < count; ++i) {
+            int offset = i / 2 + 1;
+            int neighbourIndex = i % 2 == 0 ? index + offset : index - offset;
+            neighbourIndex = (neighbourIndex % channels.size() + channels.size())
+                    % channels.size();
+            if (neighbourIndex == index) {
+                continue;
+            }
+            Channel channel = channels.get(neighbourIndex);
+            PlaybackInfo info = getPlaybackInfo(channel, nowMs);
+            if (info != null) {
+                neighbours.put(channel.getChannelId(), info);
+            }
+        }
+        return neighbours;
+    }
+
+    /**
+     * Returns the program on air of a channel with the stream type probed for the channel, as
+     * the session would play it.
+     */
+    private PlaybackInfo getPlaybackInfo(Channel channel, long nowMs) {
+        long channelId = channel.getChannelId();
+        StreamInfo channelStreamInfo = StreamInfo.decode(channel.getInternalProviderData());
+        PlaybackInfo info = tuneCache.getPlaybackInfo(channelId, nowMs);
+        if (info == null) {
+            info = tuneCache.loadPlaybackInfo(TvContract.buildChannelUri(channelId), nowMs);
+        }
+        if (info == null) {
+            if (channelStreamInfo == null || channelStreamInfo.getUrl() == null) {
+                return null;
+            }
+            return new PlaybackInfo(nowMs, nowMs + DEFAULT_PROGRAM_DURATION_MS,
+                    channelStreamInfo, ContentRatingTable.EMPTY);
+        }
+        StreamInfo streamInfo = info.streamInfo.withProbeOf(channelStreamInfo);
+        return streamInfo == info.streamInfo ? info : new PlaybackInfo(info.programId,
+                info.startTimeMs, info.endTimeMs, streamInfo, info.contentRatings);
+    }
+
+    /**
+     * Returns the profile a tune of the channel would play with.
+     */
+    private PlaybackProfile getProfile(long channelId) {
+        Channel channel = tuneCache.getChannel(channelId);
+        StreamInfo channelStreamInfo = channel != null
+                ? StreamInfo.decode(channel.getInternalProviderData()) : null;
+        return playbackProfilePolicy.getProfile(channelId, channelStreamInfo != null
+                ? channelStreamInfo.getPlaybackProfile() : null);
+    }
+
+    private static final Comparator<Channel> DISPLAY_NUMBER_ORDER = new Comparator<Channel>() {
+        @Override
+        public int compare(Channel c1, Channel c2) {
+            String n1 = c1.getDisplayNumber() != null ? c1.getDisplayNumber() : "";
+            String n2 = c2.getDisplayNumber() != null ? c2.getDisplayNumber() : "";
+            double d1 = parseDisplayNumber(n1);
+            double d2 = parseDisplayNumber(n2);
+            // Numbers first, anything else after them by name.
+            if (Double.isNaN(d1) || Double.isNaN(d2)) {
+                return Double.isNaN(d1) == Double.isNaN(d2) ? n1.compareTo(n2)
+                        : Double.isNaN(d1) ? 1 : -1;
+            }
+            return Double.compare(d1, d2);
+        }
+    };
+
+    private static double parseDisplayNumber(String displayNumber) {
+        try {
+            return Double.parseDouble(displayNumber);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private class Standby implements TvInputPlayer.Callback {
+
+        private final long channelId;
+        private final PlaybackInfo info;
+        private final TvInputPlayer player;
+        private final long createdAtMs;
+
+        Standby(long channelId, PlaybackInfo info) {
+            this.channelId = channelId;
+            this.info = info;
+            createdAtMs = SystemClock.elapsedRealtime();
+            player = new TvInputPlayer(getProfile(channelId));
+            player.addCallback(this);
+            player.setBufferSegments(bufferSegments);
+            player.setVolume(0);
+            player.prepare(context, info.streamInfo);
+            long seekPosMs = System.currentTimeMillis() - info.startTimeMs;
+            if (seekPosMs > 0) {
+                player.seekTo(seekPosMs);
+            }
+            player.setPlayWhenReady(false);
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() - createdAtMs > maxStandbyAgeMs;
+        }
+
+        void release() {
+            player.removeCallback(this);
+            player.stop();
+            player.release();
+        }
+
+        @Override
+        public void onPrepared() {
+            // Do nothing.
+        }
+
+        @Override
+        public void onPlayerStateChanged(boolean playWhenReady, int state) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onPlayWhenReadyCommitted() {
+            // Do nothing.
+        }
+
+        @Override
+        public void onPlayerError(ExoPlaybackException e) {
+            Log.w(TAG, "Standby of channel " + channelId + " failed", e);
+            if (standbys.get(channelId) == this) {
+                standbys.remove(channelId);
+            }
+            release();
+        }
+
+        @Override
+        public void onDrawnToSurface(Surface surface) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onCues(List<Cue> cues) {
+            // Do nothing.
+        }
+    }
+}
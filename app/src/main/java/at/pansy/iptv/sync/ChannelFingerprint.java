@@ -0,0 +1,134 @@
+package at.pansy.iptv.sync;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import at.pansy.iptv.xmltv.XmlTvParser;
+
+/**
+ * Fingerprint of the feed data a channel's programs are built from.
+ *
+ * <p>Programs are hashed in buckets of one UTC day by their start time, so that a feed which
+ * only grows at its end and drops programs from its beginning keeps the fingerprint of the days
+ * in between. This lets {@link SyncAdapter} find the first day which actually changed.
+ */
+public final class ChannelFingerprint {
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    private final int baseHash;
+    private final long firstDay;
+    private final int[] dayHashes;
+
+    private ChannelFingerprint(int baseHash, long firstDay, int[] dayHashes) {
+        this.baseHash = baseHash;
+        this.firstDay = firstDay;
+        this.dayHashes = dayHashes;
+    }
+
+    /**
+     * Computes the fingerprint of {@code channel} for the days overlapping the given range.
+     */
+    public static ChannelFingerprint compute(XmlTvParser.XmlTvChannel channel,
+            List<XmlTvParser.XmlTvProgram> channelPrograms, long startTimeMs, long endTimeMs) {
+        long firstDay = startTimeMs / DAY_MS;
+        int[] dayHashes = new int[(int) (endTimeMs / DAY_MS - firstDay) + 1];
+        for (XmlTvParser.XmlTvProgram program : channelPrograms) {
+            long day = program.startTimeUtcMillis / DAY_MS - firstDay;
+            if (day < 0 || day >= dayHashes.length) {
+                continue;
+            }
+            int hash = Objects.hash(program.startTimeUtcMillis, program.endTimeUtcMillis,
+                    program.title, program.description,
+                    program.icon != null ? program.icon.src : null, program.videoSrc,
+                    program.videoType, Arrays.hashCode(program.category));
+            for (XmlTvParser.XmlTvRating rating : program.rating) {
+                hash = 31 * hash + Objects.hash(rating.system, rating.value);
+            }
+            dayHashes[(int) day] = 31 * dayHashes[(int) day] + hash;
+        }
+        // Repeated programs don't depend on the feed's times, so the whole loop goes into the base.
+        // Programs without their own video embed the channel's stream, so it is part of the base.
+        int baseHash = Objects.hash(channel.url, channel.alternateUrls, channel.playbackProfile,
+                channel.repeatPrograms);
+        if (channel.repeatPrograms) {
+            for (XmlTvParser.XmlTvProgram program : channelPrograms) {
+                baseHash = 31 * baseHash + Objects.hash(program.title,
+                        program.getDurationMillis(), program.videoSrc);
+            }
+        }
+        return new ChannelFingerprint(baseHash, firstDay, dayHashes);
+    }
+
+    /**
+     * Returns the start of the first day at which this fingerprint differs from {@code other}
+     * within the days covered by both, or {@code untilMs} if there's no difference before it.
+     * Returns {@code Long.MIN_VALUE} if the fingerprints aren't comparable at all.
+     */
+    public long getUnchangedUntilMs(ChannelFingerprint other, long untilMs) {
+        if (baseHash != other.baseHash) {
+            return Long.MIN_VALUE;
+        }
+        long fromDay = Math.max(firstDay, other.firstDay);
+        long toDay = Math.min(firstDay + dayHashes.length, other.firstDay + other.dayHashes.length);
+        for (long day = fromDay; day < toDay && day * DAY_MS < untilMs; ++day) {
+            if (dayHashes[(int) (day - firstDay)]
+                    != other.dayHashes[(int) (day - other.firstDay)]) {
+                return day * DAY_MS;
+            }
+        }
+        return untilMs;
+    }
+
+    public String encode() {
+        StringBuilder builder = new StringBuilder(16 + dayHashes.length * 9)
+                .append(Integer.toHexString(baseHash))
+                .append(':')
+                .append(firstDay);
+        for (int dayHash : dayHashes) {
+            builder.append(':').append(Integer.toHexString(dayHash));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes a fingerprint written by {@link #encode()}. Returns {@code null} if
+     * {@code encoded} is malformed.
+     */
+    public static ChannelFingerprint decode(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        int dayCount = -1;
+        for (int i = 0; i < encoded.length(); ++i) {
+            if (encoded.charAt(i) == ':') {
+                dayCount++;
+            }
+        }
+        if (dayCount < 0) {
+            return null;
+        }
+        try {
+            int end = encoded.indexOf(':');
+            int baseHash = (int) Long.parseLong(encoded.substring(0, end), 16);
+            int start = end + 1;
+            end = nextSeparator(encoded, start);
+            long firstDay = Long.parseLong(encoded.substring(start, end));
+            int[] dayHashes = new int[dayCount];
+            for (int i = 0; i < dayCount; ++i) {
+                start = end + 1;
+                end = nextSeparator(encoded, start);
+                dayHashes[i] = (int) Long.parseLong(encoded.substring(start, end), 16);
+            }
+            return new ChannelFingerprint(baseHash, firstDay, dayHashes);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static int nextSeparator(String encoded, int start) {
+        int end = encoded.indexOf(':', start);
+        return end < 0 ? encoded.length() : end;
+    }
+}
@@ -0,0 +1,112 @@
+package at.pansy.iptv.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import at.pansy.iptv.xmltv.XmlTvParser;
+
+/**
+ * Schedule of a channel with repeat-programs on, where the programs of the feed are played
+ * sequentially in an endless loop. To make every device play the same program in a given channel
+ * and time, the loop is assumed to have started at the epoch time.
+ *
+ * <p>The cumulative program durations are precomputed, so the program on air at any time is
+ * found with a binary search instead of walking the loop.
+ */
+public final class LoopSchedule {
+
+    private final List<XmlTvParser.XmlTvProgram> programs;
+    private final long[] endOffsetsMs;
+
+    private LoopSchedule(List<XmlTvParser.XmlTvProgram> programs, long[] endOffsetsMs) {
+        this.programs = programs;
+        this.endOffsetsMs = endOffsetsMs;
+    }
+
+    /**
+     * Builds the loop of the given programs. Programs without a positive duration can't be
+     * scheduled and are left out.
+     */
+    public static LoopSchedule build(List<XmlTvParser.XmlTvProgram> channelPrograms) {
+        List<XmlTvParser.XmlTvProgram> programs = new ArrayList<>(channelPrograms.size());
+        for (XmlTvParser.XmlTvProgram program : channelPrograms) {
+            if (program.getDurationMillis() > 0) {
+                programs.add(program);
+            }
+        }
+        long[] endOffsetsMs = new long[programs.size()];
+        long offsetMs = 0;
+        for (int i = 0; i < endOffsetsMs.length; ++i) {
+            offsetMs += programs.get(i).getDurationMillis();
+            endOffsetsMs[i] = offsetMs;
+        }
+        return new LoopSchedule(programs, endOffsetsMs);
+    }
+
+    public boolean isEmpty() {
+        return endOffsetsMs.length == 0;
+    }
+
+    public long getDurationMillis() {
+        return isEmpty() ? 0 : endOffsetsMs[endOffsetsMs.length - 1];
+    }
+
+    /**
+     * Returns a cursor over the programs on air between {@code startTimeMs} and
+     * {@code endTimeMs}. Programs are only looked up as the cursor advances.
+     */
+    public Cursor query(long startTimeMs, long endTimeMs) {
+        return new Cursor(startTimeMs, endTimeMs);
+    }
+
+    /**
+     * Iterates over the scheduled programs of a time range.
+     */
+    public final class Cursor {
+        private final long endTimeMs;
+        private int index;
+        private long programStartTimeMs;
+        private long programEndTimeMs;
+
+        private Cursor(long startTimeMs, long endTimeMs) {
+            this.endTimeMs = endTimeMs;
+            if (isEmpty()) {
+                programEndTimeMs = endTimeMs;
+                return;
+            }
+            long durationMs = getDurationMillis();
+            long loopStartTimeMs = startTimeMs - startTimeMs % durationMs;
+            // Find the first program which ends after startTimeMs.
+            index = Arrays.binarySearch(endOffsetsMs, startTimeMs - loopStartTimeMs);
+            index = index >= 0 ? index + 1 : -index - 1;
+            programEndTimeMs = loopStartTimeMs + (index == 0 ? 0 : endOffsetsMs[index - 1]);
+            index--;
+        }
+
+        /**
+         * Moves to the next program. Returns {@code false} if it starts after the range.
+         */
+        public boolean moveToNext() {
+            if (programEndTimeMs >= endTimeMs) {
+                return false;
+            }
+            index = (index + 1) % endOffsetsMs.length;
+            programStartTimeMs = programEndTimeMs;
+            programEndTimeMs = programStartTimeMs + programs.get(index).getDurationMillis();
+            return true;
+        }
+
+        public XmlTvParser.XmlTvProgram getProgram() {
+            return programs.get(index);
+        }
+
+        public long getStartTimeMs() {
+            return programStartTimeMs;
+        }
+
+        public long getEndTimeMs() {
+            return programEndTimeMs;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SyncResult;
@@ -31,13 +32,30 @@ import android.os.RemoteException;
 import android.util.Log;
 import android.util.LongSparseArray;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import at.pansy.iptv.BuildConfig;
 import at.pansy.iptv.R;
+import at.pansy.iptv.domain.Channel;
 import at.pansy.iptv.domain.Program;
+import at.pansy.iptv.domain.StreamInfo;
 import at.pansy.iptv.util.IptvUtil;
+import at.pansy.iptv.util.RollingLog;
+import at.pansy.iptv.util.StreamProbe;
 import at.pansy.iptv.util.TvContractUtil;
+import at.pansy.iptv.util.ViewingStats;
 import at.pansy.iptv.xmltv.XmlTvParser;
 
 /**
@@ -48,22 +66,47 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
     public static final String BUNDLE_KEY_INPUT_ID = "bundle_key_input_id";
     public static final String BUNDLE_KEY_CURRENT_PROGRAM_ONLY = "bundle_key_current_program_only";
+    public static final String BUNDLE_KEY_FULL_SYNC = "bundle_key_full_sync";
     public static final long FULL_SYNC_FREQUENCY_SEC = 60 * 60 * 24;  // daily
 
     private static final int FULL_SYNC_WINDOW_SEC = 60 * 60 * 24 * 14;  // 2 weeks
     private static final int SHORT_SYNC_WINDOW_SEC = 60 * 60;  // 1 hour
     private static final int BATCH_OPERATION_COUNT = 100;
+    private static final int BULK_INSERT_COUNT = 500;
+    private static final int CHECKPOINT_FLUSH_CHANNEL_COUNT = 50;
+    // The most watched channels, whose checkpoints are flushed as soon as they are synced.
+    private static final int PRIORITY_CHANNEL_COUNT = 10;
+    private static final String SYNC_HISTORY_FILE_NAME = "sync_history.log";
+    private static final int SYNC_HISTORY_SIZE = 100;
+    private static final long PROBE_MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;  // 1 week
+    private static final int PROBE_CHANNEL_LIMIT = 50;
+    private static final int PROBE_THREAD_COUNT = 4;
 
     private final Context context;
+    private final SyncStateStore syncStateStore;
+    private final ViewingStats viewingStats;
+    private final RollingLog syncHistory;
+    private final Map<String, LoopSchedule> loopSchedules = new HashMap<>();
+    private List<XmlTvParser.XmlTvProgram> loopSchedulesSource;
+    private volatile boolean canceled;
+    private SyncTelemetry telemetry;
 
     public SyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
         this.context = context;
+        syncStateStore = new SyncStateStore(context);
+        viewingStats = new ViewingStats(context);
+        syncHistory = new RollingLog(new File(context.getFilesDir(), SYNC_HISTORY_FILE_NAME),
+                SYNC_HISTORY_SIZE);
     }
 
     public SyncAdapter(Context context, boolean autoInitialize, boolean allowParallelSyncs) {
         super(context, autoInitialize, allowParallelSyncs);
         this.context = context;
+        syncStateStore = new SyncStateStore(context);
+        viewingStats = new ViewingStats(context);
+        syncHistory = new RollingLog(new File(context.getFilesDir(), SYNC_HISTORY_FILE_NAME),
+                SYNC_HISTORY_SIZE);
     }
 
     /**
@@ -74,23 +117,58 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             ContentProviderClient provider, SyncResult syncResult) {
 
         Log.d(TAG, "onPerformSync(" + account + ", " + authority + ", " + extras + ")");
+        canceled = false;
         String inputId = extras.getString(SyncAdapter.BUNDLE_KEY_INPUT_ID);
         if (inputId == null) {
             return;
         }
 
+        telemetry = new SyncTelemetry();
+        try {
+            performSync(inputId, extras, provider, syncResult);
+        } finally {
+            telemetry.copyTo(syncResult);
+            String entry = telemetry.toJson(BuildConfig.VERSION_NAME);
+            Log.d(TAG, "Sync finished: " + entry);
+            syncHistory.append(entry);
+        }
+    }
+
+    private void performSync(String inputId, Bundle extras, ContentProviderClient provider,
+            SyncResult syncResult) {
         XmlTvParser.TvListing listings = IptvUtil.getTvListings(context,
-                context.getString(R.string.iptv_ink_epg_url), IptvUtil.FORMAT_XMLTV);
+                context.getString(R.string.iptv_ink_epg_url), IptvUtil.FORMAT_XMLTV, telemetry);
 
         XmlTvParser.TvListing channelListings = IptvUtil.getTvListings(context,
-                context.getString(R.string.iptv_ink_channel_url), IptvUtil.FORMAT_M3U);
+                context.getString(R.string.iptv_ink_channel_url), IptvUtil.FORMAT_M3U, telemetry);
+        if (listings == null || channelListings == null) {
+            syncResult.stats.numIoExceptions++;
+            return;
+        }
         listings.setChannels(channelListings.channels);
+        if (isCanceled()) {
+            return;
+        }
 
-
+        telemetry.start(SyncTelemetry.PHASE_CHANNEL_MAP);
         LongSparseArray<XmlTvParser.XmlTvChannel> channelMap = TvContractUtil.buildChannelMap(
                 context.getContentResolver(), inputId, listings.channels);
+        telemetry.stop();
+        if (channelMap == null) {
+            return;
+        }
+        telemetry.addRows(SyncTelemetry.PHASE_CHANNEL_MAP, channelMap.size());
+        telemetry.start(SyncTelemetry.PHASE_PROGRAM_BUILD);
+        Map<String, List<XmlTvParser.XmlTvProgram>> programsByChannel =
+                groupProgramsByChannel(listings.programs);
+        telemetry.stop();
+        if (loopSchedulesSource != listings.programs) {
+            loopSchedules.clear();
+            loopSchedulesSource = listings.programs;
+        }
         boolean currentProgramOnly = extras.getBoolean(
                 SyncAdapter.BUNDLE_KEY_CURRENT_PROGRAM_ONLY, false);
+        boolean fullSync = extras.getBoolean(SyncAdapter.BUNDLE_KEY_FULL_SYNC, false);
         long startMs = System.currentTimeMillis();
         long endMs = startMs + FULL_SYNC_WINDOW_SEC * 1000;
         if (currentProgramOnly) {
@@ -99,12 +177,185 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             // background.
             endMs = startMs + SHORT_SYNC_WINDOW_SEC * 1000;
         }
-        for (int i = 0; i < channelMap.size(); ++i) {
-            Uri channelUri = TvContract.buildChannelUri(channelMap.keyAt(i));
-            List<Program> programs = getPrograms(channelUri, channelMap.valueAt(i),
-                    listings.programs, startMs, endMs);
-            updatePrograms(channelUri, programs);
+        // If the previous sync of this kind got canceled, continue it with the same window. The
+        // channels it already finished are checkpointed with exactly this window end.
+        long pendingEndMs = syncStateStore.getPendingSyncEndMs(currentProgramOnly,
+                startMs - FULL_SYNC_FREQUENCY_SEC * 1000);
+        boolean resumed = pendingEndMs > startMs;
+        if (resumed) {
+            Log.d(TAG, "Resuming canceled sync until " + pendingEndMs);
+            endMs = pendingEndMs;
+        } else {
+            syncStateStore.setPendingSync(startMs, endMs, currentProgramOnly);
+        }
+        // Sync the channels which are watched the most first, and keep their progress even if
+        // the rest of the sync is lost.
+        Integer[] channelOrder = getChannelOrder(channelMap, startMs);
+        int channelCount = channelOrder.length;
+        for (int n = 0; n < channelCount; ++n) {
+            if (isCanceled()) {
+                Log.d(TAG, "Sync canceled after " + n + " of " + channelCount + " channels");
+                syncStateStore.flush();
+                return;
+            }
+            int i = channelOrder[n];
+            long channelId = channelMap.keyAt(i);
+            if (resumed && syncStateStore.getSyncedEndMs(channelId) == endMs) {
+                continue;
+            }
+            XmlTvParser.XmlTvChannel channel = channelMap.valueAt(i);
+            List<XmlTvParser.XmlTvProgram> channelPrograms = programsByChannel.get(channel.id);
+            if (channelPrograms == null) {
+                channelPrograms = Collections.emptyList();
+            }
+            telemetry.start(SyncTelemetry.PHASE_PROGRAM_BUILD);
+            ChannelFingerprint fingerprint = ChannelFingerprint.compute(channel, channelPrograms,
+                    startMs, endMs);
+            telemetry.stop();
+
+            // Programs before the first change in the feed since the last sync are already
+            // stored. Usually this leaves only the tail after the last synced window.
+            long syncStartMs = startMs;
+            long unchangedUntilMs = fullSync ? SyncStateStore.NO_CHECKPOINT
+                    : syncStateStore.getUnchangedUntilMs(channelId, fingerprint);
+            if (unchangedUntilMs > startMs) {
+                if (unchangedUntilMs >= endMs) {
+                    continue;
+                }
+                syncStartMs = unchangedUntilMs;
+            }
+
+            Uri channelUri = TvContract.buildChannelUri(channelId);
+            telemetry.start(SyncTelemetry.PHASE_PROGRAM_BUILD);
+            List<Program> programs = getPrograms(channelUri, channel, channelPrograms,
+                    syncStartMs, endMs);
+            telemetry.stop();
+            telemetry.addRows(SyncTelemetry.PHASE_PROGRAM_BUILD, programs.size());
+            if (updatePrograms(provider, channelUri, programs, syncStartMs, endMs)) {
+                syncStateStore.setCheckpoint(channelId, endMs, fingerprint);
+            }
+            if (n + 1 == PRIORITY_CHANNEL_COUNT
+                    || (n + 1) % CHECKPOINT_FLUSH_CHANNEL_COUNT == 0) {
+                syncStateStore.flush();
+            }
+        }
+        syncStateStore.clearPendingSync();
+        syncStateStore.retainChannels(channelMap);
+        syncStateStore.flush();
+        probeChannels(inputId, startMs);
+    }
+
+    /**
+     * Probes the type of channel streams which weren't probed yet or only long ago and stores
+     * the results with the channels, so that tuning doesn't need to. The most watched channels
+     * are probed first and at most {@link #PROBE_CHANNEL_LIMIT} per sync.
+     */
+    private void probeChannels(String inputId, long nowMs) {
+        telemetry.start(SyncTelemetry.PHASE_PROBE);
+        try {
+            LongSparseArray<StreamInfo> candidates = new LongSparseArray<>();
+            for (Channel channel : TvContractUtil.getChannels(context.getContentResolver(),
+                    inputId)) {
+                StreamInfo streamInfo = StreamInfo.decode(channel.getInternalProviderData());
+                if (streamInfo != null && streamInfo.getUrl() != null
+                        && (!streamInfo.isProbed()
+                                || nowMs - streamInfo.getProbeTimeMs() > PROBE_MAX_AGE_MS)) {
+                    candidates.put(channel.getChannelId(), streamInfo);
+                }
+            }
+            Integer[] order = getChannelOrder(candidates, nowMs);
+            int count = Math.min(PROBE_CHANNEL_LIMIT, order.length);
+            if (count == 0) {
+                return;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(PROBE_THREAD_COUNT);
+            List<Future<StreamInfo>> futures = new ArrayList<>(count);
+            for (int n = 0; n < count; ++n) {
+                final StreamInfo streamInfo = candidates.valueAt(order[n]);
+                futures.add(executor.submit(new Callable<StreamInfo>() {
+                    @Override
+                    public StreamInfo call() {
+                        return StreamProbe.probe(streamInfo);
+                    }
+                }));
+            }
+            executor.shutdown();
+            LongSparseArray<StreamInfo> probed = new LongSparseArray<>();
+            for (int n = 0; n < count; ++n) {
+                if (isCanceled()) {
+                    executor.shutdownNow();
+                    break;
+                }
+                StreamInfo streamInfo;
+                try {
+                    streamInfo = futures.get(n).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.w(TAG, "Probing channels stopped", e);
+                    executor.shutdownNow();
+                    break;
+                }
+                if (streamInfo != candidates.valueAt(order[n])) {
+                    probed.put(candidates.keyAt(order[n]), streamInfo);
+                }
+            }
+            telemetry.addRows(SyncTelemetry.PHASE_PROBE, probed.size());
+            TvContractUtil.updateChannelProbes(context.getContentResolver(), probed);
+        } finally {
+            telemetry.stop();
+        }
+    }
+
+    /**
+     * Returns the indices of {@code channelMap} ordered by descending viewing priority. Channels
+     * with the same priority keep their order.
+     */
+    private Integer[] getChannelOrder(LongSparseArray<?> channelMap, long nowMs) {
+        final float[] priorities = new float[channelMap.size()];
+        Integer[] order = new Integer[channelMap.size()];
+        for (int i = 0; i < order.length; ++i) {
+            priorities[i] = viewingStats.getPriority(channelMap.keyAt(i), nowMs);
+            order[i] = i;
         }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Float.compare(priorities[rhs], priorities[lhs]);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Called by the system if the running sync is canceled, e.g. because sync was turned off or
+     * a newer request for the same sync replaced it. The sync stops at the next channel or batch
+     * boundary.
+     */
+    @Override
+    public void onSyncCanceled() {
+        canceled = true;
+        super.onSyncCanceled();
+    }
+
+    private boolean isCanceled() {
+        return canceled || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Groups the programs of the feed by their channel ID, keeping the feed order.
+     */
+    private static Map<String, List<XmlTvParser.XmlTvProgram>> groupProgramsByChannel(
+            List<XmlTvParser.XmlTvProgram> programs) {
+        Map<String, List<XmlTvParser.XmlTvProgram>> programsByChannel = new HashMap<>();
+        for (XmlTvParser.XmlTvProgram program : programs) {
+            List<XmlTvParser.XmlTvProgram> channelPrograms =
+                    programsByChannel.get(program.channelId);
+            if (channelPrograms == null) {
+                channelPrograms = new ArrayList<>();
+                programsByChannel.put(program.channelId, channelPrograms);
+            }
+            channelPrograms.add(program);
+        }
+        return programsByChannel;
     }
 
     /**
@@ -112,175 +363,241 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
      *
      * @param channelUri The channel where the program info will be added.
      * @param channel The {@link XmlTvParser.XmlTvChannel} for the programs to return.
-     * @param programs The feed fetched from cloud.
+     * @param channelPrograms The programs of {@code channel} in the feed fetched from cloud.
      * @param startTimeMs The start time of the range requested.
      * @param endTimeMs The end time of the range requested.
      */
     private List<Program> getPrograms(Uri channelUri, XmlTvParser.XmlTvChannel channel,
-            List<XmlTvParser.XmlTvProgram> programs, long startTimeMs, long endTimeMs) {
+            List<XmlTvParser.XmlTvProgram> channelPrograms, long startTimeMs, long endTimeMs) {
         if (startTimeMs > endTimeMs) {
             throw new IllegalArgumentException();
         }
-        List<XmlTvParser.XmlTvProgram> channelPrograms = new ArrayList<>();
-        for (XmlTvParser.XmlTvProgram program : programs) {
-            if (program.channelId.equals(channel.id)) {
-                channelPrograms.add(program);
-            }
-        }
 
+        long channelId = ContentUris.parseId(channelUri);
         List<Program> programForGivenTime = new ArrayList<>();
         if (!channel.repeatPrograms) {
             for (XmlTvParser.XmlTvProgram program : channelPrograms) {
                 if (program.startTimeUtcMillis <= endTimeMs
                         && program.endTimeUtcMillis >= startTimeMs) {
-                    programForGivenTime.add(new Program.Builder()
-                                    .setChannelId(ContentUris.parseId(channelUri))
-                                    .setTitle(program.title)
-                                    .setDescription(program.description)
-                                    .setContentRatings(XmlTvParser.xmlTvRatingToTvContentRating(
-                                            program.rating))
-                                    .setCanonicalGenres(program.category)
-                                    .setPosterArtUri(program.icon != null ? program.icon.src : null)
-                                    .setInternalProviderData(TvContractUtil.
-                                            convertVideoInfoToInternalProviderData(
-                                                    program.videoType,
-                                                    program.videoSrc != null ? program.videoSrc : channel.url))
-                                    .setStartTimeUtcMillis(program.startTimeUtcMillis)
-                                    .setEndTimeUtcMillis(program.endTimeUtcMillis)
-                                    .build()
-                    );
+                    programForGivenTime.add(buildProgram(channelId, channel, program,
+                            program.startTimeUtcMillis, program.endTimeUtcMillis));
                 }
             }
             return programForGivenTime;
         }
 
-        // If repeat-programs is on, schedule the programs sequentially in a loop. To make every
-        // device play the same program in a given channel and time, we assumes the loop started
-        // from the epoch time.
-        long totalDurationMs = 0;
-        for (XmlTvParser.XmlTvProgram program : channelPrograms) {
-            totalDurationMs += program.getDurationMillis();
+        // If repeat-programs is on, schedule the programs sequentially in a loop.
+        LoopSchedule.Cursor cursor = getLoopSchedule(channel, channelPrograms)
+                .query(startTimeMs, endTimeMs);
+        while (cursor.moveToNext()) {
+            programForGivenTime.add(buildProgram(channelId, channel, cursor.getProgram(),
+                    cursor.getStartTimeMs(), cursor.getEndTimeMs()));
         }
+        return programForGivenTime;
+    }
 
-        long programStartTimeMs = startTimeMs - startTimeMs % totalDurationMs;
-        int i = 0;
-        final int programCount = channelPrograms.size();
-        while (programStartTimeMs < endTimeMs) {
-            XmlTvParser.XmlTvProgram programInfo = channelPrograms.get(i++ % programCount);
-            long programEndTimeMs = programStartTimeMs + programInfo.getDurationMillis();
-            if (programEndTimeMs < startTimeMs) {
-                programStartTimeMs = programEndTimeMs;
-                continue;
-            }
-            programForGivenTime.add(new Program.Builder()
-                            .setChannelId(ContentUris.parseId(channelUri))
-                            .setTitle(programInfo.title)
-                            .setDescription(programInfo.description)
-                            .setContentRatings(XmlTvParser.xmlTvRatingToTvContentRating(
-                                    programInfo.rating))
-                            .setCanonicalGenres(programInfo.category)
-                            .setPosterArtUri(programInfo.icon.src)
-                            // NOTE: {@code COLUMN_INTERNAL_PROVIDER_DATA} is a private field where
-                            // TvInputService can store anything it wants. Here, we store video type and
-                            // video URL so that TvInputService can play the video later with this field.
-                            .setInternalProviderData(TvContractUtil.convertVideoInfoToInternalProviderData(
-                                    programInfo.videoType,
-                                    programInfo.videoSrc != null ? programInfo.videoSrc : channel.url))
-                            .setStartTimeUtcMillis(programStartTimeMs)
-                            .setEndTimeUtcMillis(programEndTimeMs)
-                            .build()
-            );
-            programStartTimeMs = programEndTimeMs;
+    /**
+     * Returns the loop schedule of a channel with repeat-programs on. Schedules are kept as long
+     * as the feed they were built from is used.
+     */
+    private LoopSchedule getLoopSchedule(XmlTvParser.XmlTvChannel channel,
+            List<XmlTvParser.XmlTvProgram> channelPrograms) {
+        LoopSchedule loopSchedule = loopSchedules.get(channel.id);
+        if (loopSchedule == null) {
+            loopSchedule = LoopSchedule.build(channelPrograms);
+            loopSchedules.put(channel.id, loopSchedule);
         }
-        return programForGivenTime;
+        return loopSchedule;
+    }
+
+    private static Program buildProgram(long channelId, XmlTvParser.XmlTvChannel channel,
+            XmlTvParser.XmlTvProgram program, long startTimeMs, long endTimeMs) {
+        return new Program.Builder()
+                .setChannelId(channelId)
+                .setTitle(program.title)
+                .setDescription(program.description)
+                .setContentRatings(XmlTvParser.xmlTvRatingToTvContentRating(program.rating))
+                .setCanonicalGenres(program.category)
+                .setPosterArtUri(program.icon != null ? program.icon.src : null)
+                // NOTE: {@code COLUMN_INTERNAL_PROVIDER_DATA} is a private field where
+                // TvInputService can store anything it wants. Here, we store the encoded
+                // StreamInfo so that TvInputService can play the video later with this field.
+                .setInternalProviderData((program.videoSrc != null
+                        ? StreamInfo.fromFeedUrl(program.videoType, program.videoSrc)
+                        : StreamInfo.fromFeedUrl(program.videoType, channel.url,
+                                channel.alternateUrls)).encode())
+                .setStartTimeUtcMillis(startTimeMs)
+                .setEndTimeUtcMillis(endTimeMs)
+                .build();
     }
 
     /**
      * Updates the system database, TvProvider, with the given programs.
      *
      * <p>If there is any overlap between the given and existing programs, the existing ones
-     * will be updated with the given ones if they have the same title or replaced.
+     * will be updated with the given ones if they have the same title or replaced. Programs which
+     * start after the last stored program are written with a single bulk insert.
      *
+     * @param provider The provider client handed to {@link #onPerformSync}.
      * @param channelUri The channel where the program info will be added.
      * @param newPrograms A list of {@link Program} instances which includes program
      *         information.
+     * @param startTimeMs The start time of the range {@code newPrograms} were built for.
+     * @param endTimeMs The end time of the range {@code newPrograms} were built for.
+     * @return {@code true} if all programs were written, {@code false} if the update failed or the
+     *         sync was canceled.
      */
-    private void updatePrograms(Uri channelUri, List<Program> newPrograms) {
+    private boolean updatePrograms(ContentProviderClient provider, Uri channelUri,
+            List<Program> newPrograms, long startTimeMs, long endTimeMs) {
         final int fetchedProgramsCount = newPrograms.size();
         if (fetchedProgramsCount == 0) {
-            return;
+            return true;
         }
+        // Only the stored programs overlapping the synced range take part in the diff.
+        telemetry.start(SyncTelemetry.PHASE_PROVIDER_READ);
         List<Program> oldPrograms = TvContractUtil.getPrograms(context.getContentResolver(),
-                channelUri);
+                channelUri, startTimeMs, endTimeMs);
+        telemetry.stop();
+        telemetry.addRows(SyncTelemetry.PHASE_PROVIDER_READ, oldPrograms.size());
+        telemetry.start(SyncTelemetry.PHASE_DIFF);
+        try {
+            return diffPrograms(provider, oldPrograms, newPrograms);
+        } finally {
+            telemetry.stop();
+        }
+    }
+
+    /**
+     * Writes the difference between {@code oldPrograms} and {@code newPrograms} to TvProvider.
+     */
+    private boolean diffPrograms(ContentProviderClient provider, List<Program> oldPrograms,
+            List<Program> newPrograms) {
+        final int fetchedProgramsCount = newPrograms.size();
         Program firstNewProgram = newPrograms.get(0);
         int oldProgramsIndex = 0;
         int newProgramsIndex = 0;
         // Skip the past programs. They will be automatically removed by the system.
         for (Program program : oldPrograms) {
-            oldProgramsIndex++;
-            if(program.getEndTimeUtcMillis() > firstNewProgram.getStartTimeUtcMillis()) {
+            if (program.getEndTimeUtcMillis() > firstNewProgram.getStartTimeUtcMillis()) {
                 break;
             }
+            oldProgramsIndex++;
         }
         // Compare the new programs with old programs one by one and update/delete the old one or
-        // insert new program if there is no matching program in the database.
+        // insert new program if there is no matching program in the database. Once the old
+        // programs are exhausted the remaining new programs are bulk inserted below.
         ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        while (newProgramsIndex < fetchedProgramsCount) {
-            Program oldProgram = oldProgramsIndex < oldPrograms.size()
-                    ? oldPrograms.get(oldProgramsIndex) : null;
+        while (newProgramsIndex < fetchedProgramsCount && oldProgramsIndex < oldPrograms.size()) {
+            Program oldProgram = oldPrograms.get(oldProgramsIndex);
             Program newProgram = newPrograms.get(newProgramsIndex);
-            boolean addNewProgram = false;
-            if (oldProgram != null) {
-                if (oldProgram.equals(newProgram)) {
-                    // Exact match. No need to update. Move on to the next programs.
-                    oldProgramsIndex++;
-                    newProgramsIndex++;
-                } else if (needsUpdate(oldProgram, newProgram)) {
-                    // Partial match. Update the old program with the new one.
-                    // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There could
-                    // be application specific settings which belong to the old program.
-                    ops.add(ContentProviderOperation.newUpdate(
-                            TvContract.buildProgramUri(oldProgram.getProgramId()))
-                            .withValues(newProgram.toContentValues())
-                            .build());
-                    oldProgramsIndex++;
-                    newProgramsIndex++;
-                } else if (oldProgram.getEndTimeUtcMillis() < newProgram.getEndTimeUtcMillis()) {
-                    // No match. Remove the old program first to see if the next program in
-                    // {@code oldPrograms} partially matches the new program.
-                    ops.add(ContentProviderOperation.newDelete(
-                            TvContract.buildProgramUri(oldProgram.getProgramId()))
-                            .build());
-                    oldProgramsIndex++;
-                } else {
-                    // No match. The new program does not match any of the old programs. Insert it
-                    // as a new program.
-                    addNewProgram = true;
-                    newProgramsIndex++;
-                }
-            } else {
-                // No old programs. Just insert new programs.
-                addNewProgram = true;
+            telemetry.addOps(SyncTelemetry.PHASE_DIFF, 1);
+            if (oldProgram.equals(newProgram)) {
+                // Exact match. No need to update. Move on to the next programs.
+                oldProgramsIndex++;
                 newProgramsIndex++;
-            }
-            if (addNewProgram) {
+            } else if (needsUpdate(oldProgram, newProgram)) {
+                // Partial match. Update the old program with the new one.
+                // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There could
+                // be application specific settings which belong to the old program.
+                ops.add(ContentProviderOperation.newUpdate(
+                        TvContract.buildProgramUri(oldProgram.getProgramId()))
+                        .withValues(newProgram.toContentValues())
+                        .build());
+                telemetry.addUpdates(1);
+                oldProgramsIndex++;
+                newProgramsIndex++;
+            } else if (oldProgram.getEndTimeUtcMillis() < newProgram.getEndTimeUtcMillis()) {
+                // No match. Remove the old program first to see if the next program in
+                // {@code oldPrograms} partially matches the new program.
+                ops.add(ContentProviderOperation.newDelete(
+                        TvContract.buildProgramUri(oldProgram.getProgramId()))
+                        .build());
+                telemetry.addDeletes(1);
+                oldProgramsIndex++;
+            } else {
+                // No match. The new program does not match any of the old programs. Insert it
+                // as a new program.
                 ops.add(ContentProviderOperation
                         .newInsert(TvContract.Programs.CONTENT_URI)
                         .withValues(newProgram.toContentValues())
                         .build());
+                telemetry.addInserts(1);
+                newProgramsIndex++;
             }
             // Throttle the batch operation not to cause TransactionTooLargeException.
-            if (ops.size() > BATCH_OPERATION_COUNT
-                    || newProgramsIndex >= fetchedProgramsCount) {
-                try {
-                    context.getContentResolver().applyBatch(TvContract.AUTHORITY, ops);
-                } catch (RemoteException | OperationApplicationException e) {
-                    Log.e(TAG, "Failed to insert programs.", e);
-                    return;
+            if (ops.size() > BATCH_OPERATION_COUNT) {
+                if (!applyBatch(provider, ops)) {
+                    return false;
+                }
+            }
+        }
+        if (!applyBatch(provider, ops)) {
+            return false;
+        }
+        // Everything left starts after the last stored program. This is the whole list on the
+        // first sync of a channel.
+        return bulkInsertPrograms(provider, newPrograms, newProgramsIndex);
+    }
+
+    /**
+     * Applies and clears the pending operations. Returns {@code false} if the batch failed or the
+     * sync was canceled.
+     */
+    private boolean applyBatch(ContentProviderClient provider,
+            ArrayList<ContentProviderOperation> ops) {
+        if (ops.isEmpty()) {
+            return true;
+        }
+        if (isCanceled()) {
+            return false;
+        }
+        telemetry.start(SyncTelemetry.PHASE_APPLY);
+        try {
+            provider.applyBatch(ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to insert programs.", e);
+            return false;
+        } finally {
+            telemetry.stop();
+        }
+        telemetry.addOps(SyncTelemetry.PHASE_APPLY, ops.size());
+        ops.clear();
+        return true;
+    }
+
+    /**
+     * Inserts {@code programs} starting at {@code fromIndex} with
+     * {@link ContentProviderClient#bulkInsert}, which avoids building one
+     * {@link ContentProviderOperation} per program. Returns {@code false} if an insert failed or
+     * the sync was canceled.
+     */
+    private boolean bulkInsertPrograms(ContentProviderClient provider, List<Program> programs,
+            int fromIndex) {
+        final int count = programs.size();
+        while (fromIndex < count) {
+            if (isCanceled()) {
+                return false;
+            }
+            telemetry.start(SyncTelemetry.PHASE_APPLY);
+            // Throttle the bulk insert not to cause TransactionTooLargeException.
+            ContentValues[] values = new ContentValues[
+                    Math.min(BULK_INSERT_COUNT, count - fromIndex)];
+            try {
+                for (int i = 0; i < values.length; ++i) {
+                    values[i] = programs.get(fromIndex + i).toContentValues();
                 }
-                ops.clear();
+                provider.bulkInsert(TvContract.Programs.CONTENT_URI, values);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to insert programs.", e);
+                return false;
+            } finally {
+                telemetry.stop();
             }
+            telemetry.addOps(SyncTelemetry.PHASE_APPLY, 1);
+            telemetry.addInserts(values.length);
+            fromIndex += values.length;
         }
+        return true;
     }
 
     /**
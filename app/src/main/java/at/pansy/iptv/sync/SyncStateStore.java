@@ -0,0 +1,140 @@
+package at.pansy.iptv.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.LongSparseArray;
+
+import java.util.Map;
+
+/**
+ * Persists per-channel sync checkpoints so that periodic syncs only need to extend the program
+ * window instead of rediffing all of it.
+ *
+ * <p>A checkpoint consists of the end of the window that was last written to TvProvider and the
+ * {@link ChannelFingerprint} of the feed data it was built from. Writes are collected and only
+ * persisted by {@link #flush()}.
+ *
+ * <p>Additionally the window of a sync in progress is recorded, so that a sync which got canceled
+ * can be resumed with the same window and skip the channels it already finished.
+ */
+public class SyncStateStore {
+
+    private static final String PREFERENCES_NAME = "sync_state";
+
+    private static final String KEY_PREFIX_SYNCED_END = "synced_end_";
+    private static final String KEY_PREFIX_FINGERPRINT = "fingerprint_";
+    private static final String KEY_PENDING_START = "pending_start";
+    private static final String KEY_PENDING_END = "pending_end";
+    private static final String KEY_PENDING_CURRENT_PROGRAM_ONLY = "pending_current_program_only";
+
+    public static final long NO_CHECKPOINT = -1;
+
+    private final SharedPreferences preferences;
+    private SharedPreferences.Editor editor;
+
+    public SyncStateStore(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the time up to which the programs stored for the channel are still valid for the
+     * feed described by {@code fingerprint}, or {@link #NO_CHECKPOINT} if the channel was never
+     * synced or the feed changed in an incomparable way.
+     */
+    public long getUnchangedUntilMs(long channelId, ChannelFingerprint fingerprint) {
+        long syncedEndMs = preferences.getLong(KEY_PREFIX_SYNCED_END + channelId, NO_CHECKPOINT);
+        ChannelFingerprint stored = ChannelFingerprint.decode(
+                preferences.getString(KEY_PREFIX_FINGERPRINT + channelId, null));
+        if (syncedEndMs == NO_CHECKPOINT || stored == null) {
+            return NO_CHECKPOINT;
+        }
+        return Math.max(NO_CHECKPOINT, fingerprint.getUnchangedUntilMs(stored, syncedEndMs));
+    }
+
+    /**
+     * Returns the end of the window last synced for the channel regardless of the feed, or
+     * {@link #NO_CHECKPOINT} if the channel was never synced.
+     */
+    public long getSyncedEndMs(long channelId) {
+        return preferences.getLong(KEY_PREFIX_SYNCED_END + channelId, NO_CHECKPOINT);
+    }
+
+    public void setCheckpoint(long channelId, long syncedEndMs, ChannelFingerprint fingerprint) {
+        edit().putLong(KEY_PREFIX_SYNCED_END + channelId, syncedEndMs)
+                .putString(KEY_PREFIX_FINGERPRINT + channelId, fingerprint.encode());
+    }
+
+    /**
+     * Returns the window end of an unfinished sync of the same kind which started after
+     * {@code notBeforeMs}, or {@link #NO_CHECKPOINT} if there's nothing to resume.
+     */
+    public long getPendingSyncEndMs(boolean currentProgramOnly, long notBeforeMs) {
+        if (preferences.getLong(KEY_PENDING_START, NO_CHECKPOINT) < notBeforeMs
+                || preferences.getBoolean(KEY_PENDING_CURRENT_PROGRAM_ONLY, false)
+                        != currentProgramOnly) {
+            return NO_CHECKPOINT;
+        }
+        return preferences.getLong(KEY_PENDING_END, NO_CHECKPOINT);
+    }
+
+    /**
+     * Records the window of the sync which is about to run. This is persisted immediately.
+     */
+    public void setPendingSync(long startMs, long endMs, boolean currentProgramOnly) {
+        edit().putLong(KEY_PENDING_START, startMs)
+                .putLong(KEY_PENDING_END, endMs)
+                .putBoolean(KEY_PENDING_CURRENT_PROGRAM_ONLY, currentProgramOnly);
+        flush();
+    }
+
+    public void clearPendingSync() {
+        edit().remove(KEY_PENDING_START)
+                .remove(KEY_PENDING_END)
+                .remove(KEY_PENDING_CURRENT_PROGRAM_ONLY);
+    }
+
+    /**
+     * Removes the checkpoints of all channels which are not in {@code channelMap}.
+     */
+    public void retainChannels(LongSparseArray<?> channelMap) {
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            String key = entry.getKey();
+            long channelId;
+            if (key.startsWith(KEY_PREFIX_SYNCED_END)) {
+                channelId = parseChannelId(key, KEY_PREFIX_SYNCED_END.length());
+            } else if (key.startsWith(KEY_PREFIX_FINGERPRINT)) {
+                channelId = parseChannelId(key, KEY_PREFIX_FINGERPRINT.length());
+            } else {
+                continue;
+            }
+            if (channelMap.indexOfKey(channelId) < 0) {
+                edit().remove(key);
+            }
+        }
+    }
+
+    /**
+     * Persists all pending changes asynchronously.
+     */
+    public void flush() {
+        if (editor != null) {
+            editor.apply();
+            editor = null;
+        }
+    }
+
+    private SharedPreferences.Editor edit() {
+        if (editor == null) {
+            editor = preferences.edit();
+        }
+        return editor;
+    }
+
+    private static long parseChannelId(String key, int start) {
+        try {
+            return Long.parseLong(key.substring(start));
+        } catch (NumberFormatException e) {
+            return NO_CHECKPOINT;
+        }
+    }
+}
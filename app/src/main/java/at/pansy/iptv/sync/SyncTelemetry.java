@@ -0,0 +1,197 @@
+package at.pansy.iptv.sync;
+
+import android.content.SyncResult;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Collects per-phase timings and counters of a single sync.
+ *
+ * <p>Phases nest: while a phase is running, the time of the phase it was started from is paused,
+ * so the wall and CPU times of all phases are exclusive and add up to the total. This is what
+ * allows separating fetch, decompress and parse time of a streamed feed, see
+ * {@link #countingStream}.
+ */
+public class SyncTelemetry {
+
+    public static final int PHASE_FETCH = 0;
+    public static final int PHASE_DECOMPRESS = 1;
+    public static final int PHASE_PARSE = 2;
+    public static final int PHASE_CHANNEL_MAP = 3;
+    public static final int PHASE_PROGRAM_BUILD = 4;
+    public static final int PHASE_PROVIDER_READ = 5;
+    public static final int PHASE_DIFF = 6;
+    public static final int PHASE_APPLY = 7;
+    public static final int PHASE_PROBE = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "fetch", "decompress", "parse", "channel_map", "program_build", "provider_read",
+            "diff", "apply", "probe"
+    };
+    private static final int PHASE_COUNT = PHASE_NAMES.length;
+    private static final int MAX_DEPTH = 8;
+
+    private final long[] wallNs = new long[PHASE_COUNT];
+    private final long[] cpuNs = new long[PHASE_COUNT];
+    private final long[] bytes = new long[PHASE_COUNT];
+    private final long[] rows = new long[PHASE_COUNT];
+    private final long[] ops = new long[PHASE_COUNT];
+
+    private final int[] stack = new int[MAX_DEPTH];
+    private int depth;
+    private long lastWallNs;
+    private long lastCpuNs;
+
+    private final long startTimeMs;
+    private final long startWallNs;
+    private long peakHeapBytes;
+    private int inserts;
+    private int updates;
+    private int deletes;
+
+    public SyncTelemetry() {
+        startTimeMs = System.currentTimeMillis();
+        startWallNs = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Starts {@code phase}, pausing the phase which is currently running.
+     */
+    public void start(int phase) {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("Phases nested too deep");
+        }
+        accumulate();
+        stack[depth++] = phase;
+    }
+
+    /**
+     * Stops the phase started last and resumes the one it was started from.
+     */
+    public void stop() {
+        if (depth == 0) {
+            throw new IllegalStateException("No phase started");
+        }
+        accumulate();
+        depth--;
+        long usedHeapBytes = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        peakHeapBytes = Math.max(peakHeapBytes, usedHeapBytes);
+    }
+
+    public void addBytes(int phase, long count) {
+        bytes[phase] += count;
+    }
+
+    public void addRows(int phase, long count) {
+        rows[phase] += count;
+    }
+
+    public void addOps(int phase, long count) {
+        ops[phase] += count;
+    }
+
+    public void addInserts(int count) {
+        inserts += count;
+    }
+
+    public void addUpdates(int count) {
+        updates += count;
+    }
+
+    public void addDeletes(int count) {
+        deletes += count;
+    }
+
+    /**
+     * Wraps {@code inputStream} so that the time spent in reading it and the bytes read are
+     * attributed to {@code phase}.
+     */
+    public InputStream countingStream(InputStream inputStream, final int phase) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                start(phase);
+                try {
+                    int b = super.read();
+                    if (b >= 0) {
+                        bytes[phase]++;
+                    }
+                    return b;
+                } finally {
+                    stop();
+                }
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                start(phase);
+                try {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        bytes[phase] += read;
+                    }
+                    return read;
+                } finally {
+                    stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * Copies the operation counts to {@code syncResult}.
+     */
+    public void copyTo(SyncResult syncResult) {
+        syncResult.stats.numInserts += inserts;
+        syncResult.stats.numUpdates += updates;
+        syncResult.stats.numDeletes += deletes;
+        syncResult.stats.numEntries += rows[PHASE_PROGRAM_BUILD];
+    }
+
+    /**
+     * Returns all values as a single line JSON object for the sync history.
+     */
+    public String toJson(String versionName) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("time", startTimeMs);
+            json.put("version", versionName);
+            json.put("total_ms", (SystemClock.elapsedRealtimeNanos() - startWallNs) / 1000000);
+            json.put("peak_heap_kb", peakHeapBytes / 1024);
+            json.put("inserts", inserts);
+            json.put("updates", updates);
+            json.put("deletes", deletes);
+            for (int i = 0; i < PHASE_COUNT; ++i) {
+                JSONObject phase = new JSONObject();
+                phase.put("wall_ms", wallNs[i] / 1000000);
+                phase.put("cpu_ms", cpuNs[i] / 1000000);
+                phase.put("bytes", bytes[i]);
+                phase.put("rows", rows[i]);
+                phase.put("ops", ops[i]);
+                json.put(PHASE_NAMES[i], phase);
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return json.toString();
+    }
+
+    private void accumulate() {
+        long nowWallNs = SystemClock.elapsedRealtimeNanos();
+        long nowCpuNs = Debug.threadCpuTimeNanos();
+        if (depth > 0) {
+            int phase = stack[depth - 1];
+            wallNs[phase] += nowWallNs - lastWallNs;
+            cpuNs[phase] += nowCpuNs - lastCpuNs;
+        }
+        lastWallNs = nowWallNs;
+        lastCpuNs = nowCpuNs;
+    }
+}
@@ -0,0 +1,95 @@
+package at.pansy.iptv.util;
+
+import android.media.tv.TvContentRating;
+import android.text.TextUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process wide table of interned content ratings.
+ *
+ * <p>Feeds only use a few distinct ratings, so every comma separated rating string is converted
+ * to a {@link TvContentRating} array once and the same array is returned afterwards. The returned
+ * arrays are shared and must not be modified.
+ */
+public class ContentRatingTable {
+
+    public static final TvContentRating[] EMPTY = new TvContentRating[0];
+
+    // Guards against feeds with unexpectedly many distinct ratings.
+    private static final int MAX_SIZE = 1024;
+
+    private static final ConcurrentMap<String, TvContentRating[]> RATINGS =
+            new ConcurrentHashMap<>();
+    // Keyed by the interned arrays, which compare by identity.
+    private static final ConcurrentMap<TvContentRating[], String> FLATTENED =
+            new ConcurrentHashMap<>();
+
+    private ContentRatingTable() {}
+
+    /**
+     * Returns the ratings of a comma separated list of flattened ratings, or {@link #EMPTY} if
+     * there are none.
+     */
+    public static TvContentRating[] get(String commaSeparatedRatings) {
+        if (TextUtils.isEmpty(commaSeparatedRatings)) {
+            return EMPTY;
+        }
+        TvContentRating[] ratings = RATINGS.get(commaSeparatedRatings);
+        if (ratings != null) {
+            return ratings;
+        }
+        ratings = unflatten(commaSeparatedRatings);
+        if (RATINGS.size() >= MAX_SIZE) {
+            return ratings;
+        }
+        TvContentRating[] existing = RATINGS.putIfAbsent(commaSeparatedRatings, ratings);
+        if (existing != null) {
+            return existing;
+        }
+        FLATTENED.put(ratings, toString(ratings));
+        return ratings;
+    }
+
+    /**
+     * Returns the comma separated flattened form of {@code ratings}, or {@code null} if there
+     * are none.
+     */
+    public static String flatten(TvContentRating[] ratings) {
+        if (ratings == null || ratings.length == 0) {
+            return null;
+        }
+        String flattened = FLATTENED.get(ratings);
+        return flattened != null ? flattened : toString(ratings);
+    }
+
+    private static TvContentRating[] unflatten(String commaSeparatedRatings) {
+        int count = 1;
+        for (int i = 0; i < commaSeparatedRatings.length(); ++i) {
+            if (commaSeparatedRatings.charAt(i) == ',') {
+                count++;
+            }
+        }
+        TvContentRating[] ratings = new TvContentRating[count];
+        int start = 0;
+        for (int i = 0; i < count; ++i) {
+            int end = commaSeparatedRatings.indexOf(',', start);
+            if (end < 0) {
+                end = commaSeparatedRatings.length();
+            }
+            ratings[i] = TvContentRating.unflattenFromString(
+                    commaSeparatedRatings.substring(start, end).trim());
+            start = end + 1;
+        }
+        return ratings;
+    }
+
+    private static String toString(TvContentRating[] ratings) {
+        StringBuilder builder = new StringBuilder(ratings[0].flattenToString());
+        for (int i = 1; i < ratings.length; ++i) {
+            builder.append(',').append(ratings[i].flattenToString());
+        }
+        return builder.toString();
+    }
+}
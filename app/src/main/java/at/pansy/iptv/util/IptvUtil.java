@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
+import at.pansy.iptv.sync.SyncTelemetry;
 import at.pansy.iptv.xmltv.XmlTvParser;
 
 /**
@@ -38,6 +39,15 @@ public class IptvUtil {
     }
 
     public static XmlTvParser.TvListing getTvListings(Context context, String url, int format) {
+        return getTvListings(context, url, format, new SyncTelemetry());
+    }
+
+    /**
+     * Returns the listings of the feed at {@code url} and records the fetch, decompress and parse
+     * phases in {@code telemetry}.
+     */
+    public static XmlTvParser.TvListing getTvListings(Context context, String url, int format,
+            SyncTelemetry telemetry) {
 
         if (sampleTvListings.containsKey(url)) {
             return sampleTvListings.get(url);
@@ -47,10 +57,19 @@ public class IptvUtil {
                 Uri.parse(url).normalizeScheme();
 
         XmlTvParser.TvListing sampleTvListing = null;
+        telemetry.start(SyncTelemetry.PHASE_PARSE);
         try {
-            InputStream inputStream = getInputStream(context, catalogUri);
+            telemetry.start(SyncTelemetry.PHASE_FETCH);
+            InputStream inputStream;
+            try {
+                inputStream = telemetry.countingStream(getInputStream(context, catalogUri),
+                        SyncTelemetry.PHASE_FETCH);
+            } finally {
+                telemetry.stop();
+            }
             if (url.endsWith(".gz")) {
-                inputStream = new GZIPInputStream(inputStream);
+                inputStream = telemetry.countingStream(new GZIPInputStream(inputStream),
+                        SyncTelemetry.PHASE_DECOMPRESS);
             }
             if (format == FORMAT_M3U) {
                 sampleTvListing = parse(inputStream);
@@ -59,8 +78,12 @@ public class IptvUtil {
             }
         } catch (IOException e) {
             Log.e(TAG, "Error in fetching " + catalogUri, e);
+        } finally {
+            telemetry.stop();
         }
         if (sampleTvListing != null) {
+            telemetry.addRows(SyncTelemetry.PHASE_PARSE,
+                    sampleTvListing.channels.size() + sampleTvListing.programs.size());
             sampleTvListings.put(url, sampleTvListing);
         }
         return sampleTvListing;
@@ -87,6 +110,8 @@ public class IptvUtil {
         List<XmlTvParser.XmlTvChannel> channels = new ArrayList<>();
         List<XmlTvParser.XmlTvProgram> programs = new ArrayList<>();
         Map<Integer, Integer> channelMap = new HashMap<>();
+        // The channel the next URL belongs to.
+        XmlTvParser.XmlTvChannel channel = null;
 
         while ((line = in.readLine()) != null) {
             if (line.startsWith("#EXTINF:")) {
@@ -97,6 +122,7 @@ public class IptvUtil {
                 String displayNumber = null;
                 int originalNetworkId = 0;
                 XmlTvParser.XmlTvIcon icon = null;
+                String playbackProfile = null;
 
                 String[] parts = line.split(", ", 2);
                 if (parts.length == 2) {
@@ -115,24 +141,36 @@ public class IptvUtil {
                                 icon = new XmlTvParser.XmlTvIcon("http://logo.iptv.ink/"
                                         + part.substring(10, end));
                             }
+                        } else if (part.startsWith("playback-profile=")) {
+                            // E.g. playback-profile="low-latency" for sports channels.
+                            int end = part.indexOf("\"", 18);
+                            if (end > 18) {
+                                playbackProfile = part.substring(18, end);
+                            }
                         }
                     }
                     displayName = parts[1].replaceAll("\\[\\/?COLOR[^\\]]*\\]", "");
                 }
 
+                channel = null;
                 if (originalNetworkId != 0 && displayName != null) {
-                    XmlTvParser.XmlTvChannel channel =
-                            new XmlTvParser.XmlTvChannel(id, displayName, displayNumber, icon,
-                                originalNetworkId, 0, 0, false);
                     if (channelMap.containsKey(originalNetworkId)) {
-                        channels.set(channelMap.get(originalNetworkId), channel);
+                        // A duplicate entry lists an alternate URL of the same channel.
+                        channel = channels.get(channelMap.get(originalNetworkId));
                     } else {
+                        channel = new XmlTvParser.XmlTvChannel(id, displayName, displayNumber,
+                                icon, originalNetworkId, 0, 0, false);
+                        channel.playbackProfile = playbackProfile;
                         channelMap.put(originalNetworkId, channels.size());
                         channels.add(channel);
                     }
                 }
-            } else if (line.startsWith("http") && channels.size() > 0) {
-                channels.get(channels.size()-1).url = line;
+            } else if (line.startsWith("http") && channel != null) {
+                if (channel.url == null) {
+                    channel.url = line;
+                } else if (!channel.url.equals(line) && !channel.alternateUrls.contains(line)) {
+                    channel.alternateUrls.add(line);
+                }
             }
         }
         return new XmlTvParser.TvListing(channels, programs);
@@ -0,0 +1,69 @@
+package at.pansy.iptv.util;
+
+/**
+ * Histogram of latencies with fixed, roughly logarithmic buckets from 25 ms to 30 s.
+ *
+ * <p>Percentiles are estimated as the upper bound of the bucket they fall into, which is exact
+ * enough to track a target like "90% of tunes below 1.5 s" and needs constant memory.
+ */
+public class LatencyHistogram {
+
+    private static final long[] BUCKET_UPPER_BOUNDS_MS = {
+            25, 50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 7500, 10000, 15000,
+            30000, Long.MAX_VALUE
+    };
+
+    private final int[] counts = new int[BUCKET_UPPER_BOUNDS_MS.length];
+    private int count;
+    private long totalMs;
+    private long maxMs;
+
+    public void add(long latencyMs) {
+        int bucket = 0;
+        while (latencyMs > BUCKET_UPPER_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        count++;
+        totalMs += latencyMs;
+        maxMs = Math.max(maxMs, latencyMs);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getMeanMs() {
+        return count > 0 ? totalMs / count : 0;
+    }
+
+    public long getMaxMs() {
+        return maxMs;
+    }
+
+    /**
+     * Returns the estimated latency below which {@code percentile} percent of all latencies are,
+     * or 0 if nothing was added.
+     */
+    public long getPercentileMs(int percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = ((long) count * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(BUCKET_UPPER_BOUNDS_MS[i], maxMs);
+            }
+        }
+        return maxMs;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + count + " mean=" + getMeanMs() + "ms p50=" + getPercentileMs(50)
+                + "ms p90=" + getPercentileMs(90) + "ms p99=" + getPercentileMs(99) + "ms max="
+                + maxMs + "ms";
+    }
+}
@@ -0,0 +1,430 @@
+package at.pansy.iptv.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import at.pansy.iptv.R;
+
+/**
+ * Downloads channel logos and writes them to TvProvider.
+ *
+ * <p>Logo images are stored on disk under the SHA-1 of their content, so a logo shared by many
+ * channels is stored once. For every logo URL the validators of the last response are kept and
+ * the logo is revalidated with a conditional GET. For every channel logo URI the hash of the
+ * image last written to it is kept, so unchanged logos aren't written to TvProvider again.
+ *
+ * <p>Downloads run in parallel, but at most {@link #MAX_DOWNLOADS_PER_HOST} at a time go to the
+ * same host. Logos larger than the configured bounding box are scaled down and re-encoded before
+ * they are stored, so the TV app doesn't have to decode huge images.
+ *
+ * <p>Validators, hashes and images of logos which are no longer in the feed are dropped every
+ * time the logos are inserted.
+ */
+public class LogoCache {
+
+    private static final String TAG = "LogoCache";
+
+    private static final String PREFERENCES_NAME = "logo_cache";
+    private static final String KEY_PREFIX_ETAG = "etag_";
+    private static final String KEY_PREFIX_LAST_MODIFIED = "last_modified_";
+    private static final String KEY_PREFIX_CONTENT_HASH = "content_hash_";
+    private static final String KEY_PREFIX_WRITTEN_HASH = "written_hash_";
+
+    private static final String DIRECTORY_NAME = "logos";
+
+    private static final int MAX_PARALLEL_DOWNLOADS = 8;
+    private static final int MAX_DOWNLOADS_PER_HOST = 4;
+    private static final int MAX_LOGO_BYTES = 8 * 1024 * 1024;
+    private static final int CONNECTION_TIMEOUT_MS = 3000;  // 3 sec
+    private static final int READ_TIMEOUT_MS = 10000;  // 10 sec
+    private static final int WEBP_QUALITY = 90;
+    // Unreferenced files younger than this may belong to a download which is still running.
+    private static final long MIN_UNREFERENCED_AGE_MS = 60 * 60 * 1000L;  // 1 hour
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            MAX_PARALLEL_DOWNLOADS, MAX_PARALLEL_DOWNLOADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private static final ConcurrentMap<String, Semaphore> HOST_PERMITS =
+            new ConcurrentHashMap<>();
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final File directory;
+    private final int maxWidth;
+    private final int maxHeight;
+
+    public LogoCache(Context context) {
+        this.context = context.getApplicationContext();
+        preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        directory = new File(this.context.getCacheDir(), DIRECTORY_NAME);
+        maxWidth = this.context.getResources().getInteger(R.integer.logo_max_width);
+        maxHeight = this.context.getResources().getInteger(R.integer.logo_max_height);
+    }
+
+    /**
+     * Asynchronously inserts the logos into TvProvider and drops the cached state of all other
+     * logos.
+     *
+     * @param logos A map from channel logo URI to the URL of the logo, for all channels of the
+     *         input which have a logo.
+     */
+    public void insertLogos(Map<Uri, String> logos) {
+        prune(logos);
+        // Every URL is fetched once, no matter how many channels use it.
+        Map<String, List<Uri>> urls = new HashMap<>();
+        for (Map.Entry<Uri, String> entry : logos.entrySet()) {
+            List<Uri> logoUris = urls.get(entry.getValue());
+            if (logoUris == null) {
+                logoUris = new ArrayList<>();
+                urls.put(entry.getValue(), logoUris);
+            }
+            logoUris.add(entry.getKey());
+        }
+        for (final Map.Entry<String, List<Uri>> entry : urls.entrySet()) {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        insertLogo(entry.getKey(), entry.getValue());
+                    } catch (RuntimeException e) {
+                        // A broken logo must not take down the sync.
+                        Log.e(TAG, "Can't insert " + entry.getKey(), e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops the validators and hashes of logo URIs and URLs which aren't in {@code logos}, and
+     * the stored images no URL refers to anymore.
+     */
+    private void prune(Map<Uri, String> logos) {
+        Set<String> logoUris = new HashSet<>();
+        for (Uri logoUri : logos.keySet()) {
+            logoUris.add(logoUri.toString());
+        }
+        Set<String> urls = new HashSet<>(logos.values());
+        Set<String> contentHashes = new HashSet<>();
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            String key = entry.getKey();
+            boolean keep;
+            if (key.startsWith(KEY_PREFIX_WRITTEN_HASH)) {
+                keep = logoUris.contains(key.substring(KEY_PREFIX_WRITTEN_HASH.length()));
+            } else if (key.startsWith(KEY_PREFIX_CONTENT_HASH)) {
+                keep = urls.contains(key.substring(KEY_PREFIX_CONTENT_HASH.length()));
+                if (keep) {
+                    contentHashes.add(String.valueOf(entry.getValue()));
+                }
+            } else if (key.startsWith(KEY_PREFIX_ETAG)) {
+                keep = urls.contains(key.substring(KEY_PREFIX_ETAG.length()));
+            } else if (key.startsWith(KEY_PREFIX_LAST_MODIFIED)) {
+                keep = urls.contains(key.substring(KEY_PREFIX_LAST_MODIFIED.length()));
+            } else {
+                keep = true;
+            }
+            if (!keep) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long nowMs = System.currentTimeMillis();
+        for (File file : files) {
+            if (!contentHashes.contains(file.getName())
+                    && nowMs - file.lastModified() > MIN_UNREFERENCED_AGE_MS
+                    && !file.delete()) {
+                Log.w(TAG, "Can't delete " + file);
+            }
+        }
+    }
+
+    private void insertLogo(String url, List<Uri> logoUris) {
+        String contentHash;
+        try {
+            contentHash = fetch(new URL(url));
+        } catch (IOException e) {
+            Log.e(TAG, "Can't load " + url, e);
+            return;
+        }
+        if (contentHash == null) {
+            return;
+        }
+        File file = getFile(contentHash);
+        for (Uri logoUri : logoUris) {
+            String key = KEY_PREFIX_WRITTEN_HASH + logoUri;
+            if (contentHash.equals(preferences.getString(key, null))) {
+                continue;
+            }
+            if (write(file, logoUri)) {
+                preferences.edit().putString(key, contentHash).apply();
+            }
+        }
+    }
+
+    /**
+     * Makes sure the current logo at {@code url} is stored and returns its content hash, or
+     * {@code null} if there's no logo.
+     */
+    private String fetch(URL url) throws IOException {
+        String urlKey = url.toString();
+        String variant = "_" + maxWidth + "x" + maxHeight;
+        String contentHash = preferences.getString(KEY_PREFIX_CONTENT_HASH + urlKey, null);
+        if (contentHash != null
+                && (!contentHash.endsWith(variant) || !getFile(contentHash).exists())) {
+            contentHash = null;
+        }
+
+        Semaphore permits = getHostPermits(url.getHost());
+        permits.acquireUninterruptibly();
+        URLConnection urlConnection = null;
+        try {
+            urlConnection = url.openConnection();
+            urlConnection.setConnectTimeout(CONNECTION_TIMEOUT_MS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MS);
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                // Other schemes, like file URLs, have neither validators nor response codes.
+                contentHash = store(read(urlConnection.getInputStream()), variant);
+                preferences.edit().putString(KEY_PREFIX_CONTENT_HASH + urlKey, contentHash)
+                        .apply();
+                return contentHash;
+            }
+            HttpURLConnection connection = (HttpURLConnection) urlConnection;
+            if (contentHash != null) {
+                String etag = preferences.getString(KEY_PREFIX_ETAG + urlKey, null);
+                String lastModified = preferences.getString(
+                        KEY_PREFIX_LAST_MODIFIED + urlKey, null);
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && contentHash != null) {
+                return contentHash;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "Unexpected response " + responseCode + " for " + url);
+                return null;
+            }
+            contentHash = store(read(connection.getInputStream()), variant);
+            preferences.edit()
+                    .putString(KEY_PREFIX_ETAG + urlKey, connection.getHeaderField("ETag"))
+                    .putString(KEY_PREFIX_LAST_MODIFIED + urlKey,
+                            connection.getHeaderField("Last-Modified"))
+                    .putString(KEY_PREFIX_CONTENT_HASH + urlKey, contentHash)
+                    .apply();
+            return contentHash;
+        } finally {
+            if (urlConnection instanceof HttpURLConnection) {
+                ((HttpURLConnection) urlConnection).disconnect();
+            }
+            permits.release();
+        }
+    }
+
+    private boolean write(File file, Uri logoUri) {
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = new FileInputStream(file);
+            os = context.getContentResolver().openOutputStream(logoUri);
+            StreamTransfer.copy(is, os);
+            return true;
+        } catch (IOException ioe) {
+            Log.e(TAG, "Failed to write " + file + " to " + logoUri, ioe);
+            return false;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Ignore exception.
+                }
+            }
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    // Ignore exception.
+                }
+            }
+        }
+    }
+
+    /**
+     * Scales the image down to fit the bounding box and re-encodes it. Images which already fit
+     * or can't be decoded are returned as they are.
+     */
+    private byte[] downscale(byte[] content) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(content, 0, content.length, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0 || (width <= maxWidth && height <= maxHeight)) {
+            return content;
+        }
+        // Subsample while the image stays at least as large as the bounding box, which is much
+        // cheaper than decoding it in full size.
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (width / (options.inSampleSize * 2) >= maxWidth
+                && height / (options.inSampleSize * 2) >= maxHeight) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(content, 0, content.length, options);
+        if (bitmap == null) {
+            return content;
+        }
+        float scale = Math.min((float) maxWidth / bitmap.getWidth(),
+                (float) maxHeight / bitmap.getHeight());
+        if (scale < 1) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        boolean compressed = bitmap.compress(Bitmap.CompressFormat.WEBP, WEBP_QUALITY, os);
+        bitmap.recycle();
+        if (!compressed || os.size() >= content.length) {
+            return content;
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Stores a logo unless it is stored already and returns its content hash.
+     */
+    private String store(byte[] content, String variant) throws IOException {
+        // The stored image depends on the bounding box, so it's part of the key.
+        String contentHash = sha1(content) + variant;
+        File file = getFile(contentHash);
+        if (!file.exists()) {
+            store(downscale(content), file);
+        }
+        return contentHash;
+    }
+
+    private void store(byte[] content, File file) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        // Write to a temporary file first, so that concurrent readers never see partial logos.
+        File tempFile = File.createTempFile(file.getName(), null, directory);
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tempFile);
+            os.write(content);
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    // Ignore exception.
+                }
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Can't create " + file);
+        }
+    }
+
+    private File getFile(String contentHash) {
+        return new File(directory, contentHash);
+    }
+
+    private static Semaphore getHostPermits(String host) {
+        Semaphore permits = HOST_PERMITS.get(host);
+        if (permits == null) {
+            permits = new Semaphore(MAX_DOWNLOADS_PER_HOST);
+            Semaphore existing = HOST_PERMITS.putIfAbsent(host, permits);
+            if (existing != null) {
+                permits = existing;
+            }
+        }
+        return permits;
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                if (os.size() + len > MAX_LOGO_BYTES) {
+                    throw new IOException("Logo exceeds " + MAX_LOGO_BYTES + " bytes");
+                }
+                os.write(buffer, 0, len);
+            }
+            return os.toByteArray();
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // Ignore exception.
+            }
+        }
+    }
+
+    private static String sha1(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(content);
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
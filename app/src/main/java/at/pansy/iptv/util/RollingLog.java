@@ -0,0 +1,84 @@
+package at.pansy.iptv.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small line based log file which keeps only the most recent lines.
+ */
+public class RollingLog {
+
+    private static final String TAG = "RollingLog";
+
+    private final File file;
+    private final int maxLines;
+
+    public RollingLog(File file, int maxLines) {
+        this.file = file;
+        this.maxLines = maxLines;
+    }
+
+    /**
+     * Appends {@code line} and drops the oldest lines exceeding the limit.
+     */
+    public synchronized void append(String line) {
+        List<String> lines = read();
+        lines.add(line);
+        int from = Math.max(0, lines.size() - maxLines);
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file);
+            for (int i = from; i < lines.size(); ++i) {
+                writer.write(lines.get(i));
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Ignore exception.
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns all lines, oldest first.
+     */
+    public synchronized List<String> read() {
+        List<String> lines = new ArrayList<>();
+        if (!file.exists()) {
+            return lines;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore exception.
+                }
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,119 @@
+package at.pansy.iptv.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+
+import at.pansy.iptv.domain.PlaybackInfo;
+import at.pansy.iptv.domain.StreamInfo;
+
+/**
+ * Detects the type of a stream from its content type and first bytes, since M3U feeds don't
+ * declare it.
+ *
+ * <p>A playlist starting with {@code #EXTM3U} is HLS, a document with an {@code <MPD} element is
+ * DASH, and anything else, including MPEG-TS with its sync byte every 188 bytes, is played
+ * progressively.
+ */
+public class StreamProbe {
+
+    private static final String TAG = "StreamProbe";
+
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int READ_TIMEOUT_MS = 5000;
+    private static final int PROBE_SIZE = 1024;
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final byte TS_SYNC_BYTE = 0x47;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private StreamProbe() {}
+
+    /**
+     * Returns a copy of {@code streamInfo} with the probed type, or {@code streamInfo} itself if
+     * the stream couldn't be probed. This does network I/O and must not be called on the main
+     * thread.
+     */
+    public static StreamInfo probe(StreamInfo streamInfo) {
+        String url = streamInfo.getUrl();
+        if (url == null || !url.startsWith("http")) {
+            return streamInfo;
+        }
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+            for (Map.Entry<String, String> header : streamInfo.getHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode < 200 || responseCode >= 300) {
+                Log.w(TAG, "Failed to probe " + url + ": HTTP " + responseCode);
+                return streamInfo;
+            }
+            inputStream = connection.getInputStream();
+            byte[] data = new byte[PROBE_SIZE];
+            int length = 0;
+            int read;
+            while (length < data.length
+                    && (read = inputStream.read(data, length, data.length - length)) > 0) {
+                length += read;
+            }
+            int type = classify(connection.getContentType(), data, length);
+            Log.d(TAG, "Probed " + url + " as type " + type);
+            return new StreamInfo.Builder(streamInfo)
+                    .setProbedType(type)
+                    .setProbeTimeMs(System.currentTimeMillis())
+                    .build();
+        } catch (IOException | ClassCastException e) {
+            Log.w(TAG, "Failed to probe " + url, e);
+            return streamInfo;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // Ignore exception.
+                }
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static int classify(String contentType, byte[] data, int length) {
+        String text = new String(data, 0, length, ASCII);
+        // Skip a byte order mark, which isn't ASCII, and leading white space.
+        String trimmed = text.replaceFirst("^\\uFFFD*\\s*", "");
+        if (trimmed.startsWith("#EXTM3U")) {
+            return PlaybackInfo.VIDEO_TYPE_HLS;
+        }
+        if (text.contains("<MPD")) {
+            return PlaybackInfo.VIDEO_TYPE_MPEG_DASH;
+        }
+        if (length > TS_PACKET_SIZE && data[0] == TS_SYNC_BYTE
+                && data[TS_PACKET_SIZE] == TS_SYNC_BYTE) {
+            return PlaybackInfo.VIDEO_TYPE_HTTP_PROGRESSIVE;
+        }
+        // Fall back to the content type for truncated or unusual responses.
+        String mimeType = contentType != null ? contentType.toLowerCase(Locale.US) : "";
+        if (mimeType.contains("mpegurl")) {
+            return PlaybackInfo.VIDEO_TYPE_HLS;
+        }
+        if (mimeType.contains("dash+xml")) {
+            return PlaybackInfo.VIDEO_TYPE_MPEG_DASH;
+        }
+        return PlaybackInfo.VIDEO_TYPE_HTTP_PROGRESSIVE;
+    }
+}
@@ -0,0 +1,76 @@
+package at.pansy.iptv.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies streams, letting the kernel move the data where the stream types allow.
+ *
+ * <p>Between two file descriptor backed streams, such as files and the streams returned by
+ * {@link android.content.ContentResolver#openOutputStream} for provider files, the data is
+ * transferred by the kernel. Other streams are copied through a heap buffer, since wrapping them
+ * in a channel would only add a copy.
+ */
+public class StreamTransfer {
+
+    private static final String TAG = "StreamTransfer";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private StreamTransfer() {}
+
+    /**
+     * Copies everything from {@code is} to {@code os}. The streams are not closed.
+     *
+     * @return The number of bytes copied.
+     */
+    public static long copy(InputStream is, OutputStream os) throws IOException {
+        long startTimeMs = SystemClock.elapsedRealtime();
+        long count;
+        if (is instanceof FileInputStream && os instanceof FileOutputStream) {
+            count = transfer(((FileInputStream) is).getChannel(),
+                    ((FileOutputStream) os).getChannel());
+        } else {
+            count = copyHeap(is, os);
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            long durationMs = SystemClock.elapsedRealtime() - startTimeMs;
+            Log.v(TAG, "Copied " + count + " bytes in " + durationMs + " ms");
+        }
+        return count;
+    }
+
+    private static long transfer(FileChannel in, FileChannel out) throws IOException {
+        long position = in.position();
+        long size = in.size();
+        long count = 0;
+        while (position < size) {
+            long transferred = in.transferTo(position, size - position, out);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            count += transferred;
+        }
+        in.position(position);
+        return count;
+    }
+
+    private static long copyHeap(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long count = 0;
+        int len;
+        while ((len = is.read(buffer)) != -1) {
+            os.write(buffer, 0, len);
+            count += len;
+        }
+        return count;
+    }
+}
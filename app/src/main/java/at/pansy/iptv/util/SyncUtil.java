@@ -61,4 +61,18 @@ public class SyncUtil {
         ContentResolver.requestSync(AccountService.getAccount(ACCOUNT_TYPE), CONTENT_AUTHORITY,
                 bundle);
     }
+
+    /**
+     * Requests an expedited sync which rewrites the programs of every channel whose stored rows
+     * differ from the feed, instead of trusting the checkpoints of earlier syncs.
+     */
+    public static void requestFullSync(String inputId) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putString(SyncAdapter.BUNDLE_KEY_INPUT_ID, inputId);
+        bundle.putBoolean(SyncAdapter.BUNDLE_KEY_FULL_SYNC, true);
+        ContentResolver.requestSync(AccountService.getAccount(ACCOUNT_TYPE), CONTENT_AUTHORITY,
+                bundle);
+    }
 }
@@ -16,27 +16,24 @@
 
 package at.pansy.iptv.util;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.media.tv.TvContentRating;
 import android.media.tv.TvContract;
 import android.media.tv.TvContract.Channels;
 import android.media.tv.TvContract.Programs;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
-import android.util.Pair;
 import android.util.SparseArray;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -45,6 +42,7 @@ import java.util.Map;
 import at.pansy.iptv.domain.Channel;
 import at.pansy.iptv.domain.PlaybackInfo;
 import at.pansy.iptv.domain.Program;
+import at.pansy.iptv.domain.StreamInfo;
 import at.pansy.iptv.xmltv.XmlTvParser;
 
 /**
@@ -52,7 +50,8 @@ import at.pansy.iptv.xmltv.XmlTvParser;
  */
 public class TvContractUtil {
     private static final String TAG = "TvContractUtils";
-    private static final boolean DEBUG = true;
+
+    private static final int BATCH_OPERATION_COUNT = 100;
 
     private static final SparseArray<String> VIDEO_HEIGHT_TO_FORMAT_MAP = new SparseArray<>();
 
@@ -67,20 +66,42 @@ public class TvContractUtil {
 
     private TvContractUtil() {}
 
+    /**
+     * Makes the channels of the input match {@code channels}. Existing channels are matched by
+     * their original network ID and only written if any of their columns changed, so running
+     * this again for an unchanged feed doesn't write anything. All writes are applied in batches
+     * and logos are inserted through {@link LogoCache}.
+     */
     public static void updateChannels(
             Context context, String inputId, List<XmlTvParser.XmlTvChannel> channels) {
-        // Create a map from original network ID to channel row ID for existing channels.
-        SparseArray<Long> mExistingChannelsMap = new SparseArray<>();
+        // Create a map from original network ID to the stored values of existing channels.
+        SparseArray<ContentValues> existingChannelsMap = new SparseArray<>();
         Uri channelsUri = TvContract.buildChannelsUriForInput(inputId);
-        String[] projection = {Channels._ID, Channels.COLUMN_ORIGINAL_NETWORK_ID};
+        String[] projection = {
+                Channels._ID,
+                Channels.COLUMN_INPUT_ID,
+                Channels.COLUMN_DISPLAY_NUMBER,
+                Channels.COLUMN_DISPLAY_NAME,
+                Channels.COLUMN_ORIGINAL_NETWORK_ID,
+                Channels.COLUMN_TRANSPORT_STREAM_ID,
+                Channels.COLUMN_SERVICE_ID,
+                Channels.COLUMN_INTERNAL_PROVIDER_DATA
+        };
         Cursor cursor = null;
         ContentResolver resolver = context.getContentResolver();
         try {
             cursor = resolver.query(channelsUri, projection, null, null, null);
             while (cursor != null && cursor.moveToNext()) {
-                long rowId = cursor.getLong(0);
-                int originalNetworkId = cursor.getInt(1);
-                mExistingChannelsMap.put(originalNetworkId, rowId);
+                ContentValues values = new ContentValues();
+                values.put(Channels._ID, cursor.getLong(0));
+                values.put(Channels.COLUMN_INPUT_ID, cursor.getString(1));
+                values.put(Channels.COLUMN_DISPLAY_NUMBER, cursor.getString(2));
+                values.put(Channels.COLUMN_DISPLAY_NAME, cursor.getString(3));
+                values.put(Channels.COLUMN_ORIGINAL_NETWORK_ID, cursor.getInt(4));
+                values.put(Channels.COLUMN_TRANSPORT_STREAM_ID, cursor.getInt(5));
+                values.put(Channels.COLUMN_SERVICE_ID, cursor.getInt(6));
+                values.put(Channels.COLUMN_INTERNAL_PROVIDER_DATA, cursor.getString(7));
+                existingChannelsMap.put(cursor.getInt(4), values);
             }
         } finally {
             if (cursor != null) {
@@ -88,55 +109,146 @@ public class TvContractUtil {
             }
         }
 
-        // If a channel exists, update it. If not, insert a new one.
-        ContentValues values = new ContentValues();
-        values.put(Channels.COLUMN_INPUT_ID, inputId);
+        // If a channel exists and changed, update it. If not, insert a new one.
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        // The logo URL of each operation, or null if it has none.
+        List<String> opLogos = new ArrayList<>();
         Map<Uri, String> logos = new HashMap<>();
         for (XmlTvParser.XmlTvChannel channel : channels) {
+            ContentValues values = new ContentValues();
+            values.put(Channels.COLUMN_INPUT_ID, inputId);
             values.put(Channels.COLUMN_DISPLAY_NUMBER, channel.displayNumber);
             values.put(Channels.COLUMN_DISPLAY_NAME, channel.displayName);
             values.put(Channels.COLUMN_ORIGINAL_NETWORK_ID, channel.originalNetworkId);
             values.put(Channels.COLUMN_TRANSPORT_STREAM_ID, channel.transportStreamId);
             values.put(Channels.COLUMN_SERVICE_ID, channel.serviceId);
-            values.put(Channels.COLUMN_INTERNAL_PROVIDER_DATA, channel.url);
-            Long rowId = mExistingChannelsMap.get(channel.originalNetworkId);
-            Uri uri;
-            if (rowId == null) {
-                uri = resolver.insert(Channels.CONTENT_URI, values);
+            ContentValues existing = existingChannelsMap.get(channel.originalNetworkId);
+            if (channel.url != null) {
+                // Keep the probed type of an unchanged URL, probing is expensive.
+                StreamInfo streamInfo = new StreamInfo.Builder(StreamInfo.fromFeedUrl(
+                        PlaybackInfo.VIDEO_TYPE_HLS, channel.url, channel.alternateUrls))
+                        .setPlaybackProfile(channel.playbackProfile)
+                        .build();
+                if (existing != null) {
+                    streamInfo = streamInfo.withProbeOf(StreamInfo.decode(
+                            existing.getAsString(Channels.COLUMN_INTERNAL_PROVIDER_DATA)));
+                }
+                values.put(Channels.COLUMN_INTERNAL_PROVIDER_DATA, streamInfo.encode());
             } else {
-                uri = TvContract.buildChannelUri(rowId);
-                resolver.update(uri, values, null, null);
-                mExistingChannelsMap.remove(channel.originalNetworkId);
+                values.putNull(Channels.COLUMN_INTERNAL_PROVIDER_DATA);
             }
-            if (!TextUtils.isEmpty(channel.icon.src)) {
-                logos.put(TvContract.buildChannelLogoUri(uri), channel.icon.src);
+            String logo = channel.icon != null && !TextUtils.isEmpty(channel.icon.src)
+                    ? channel.icon.src : null;
+            if (existing == null) {
+                ops.add(ContentProviderOperation.newInsert(Channels.CONTENT_URI)
+                        .withValues(values)
+                        .build());
+                opLogos.add(logo);
+            } else {
+                existingChannelsMap.remove(channel.originalNetworkId);
+                Uri uri = TvContract.buildChannelUri(existing.getAsLong(Channels._ID));
+                existing.remove(Channels._ID);
+                if (!existing.equals(values)) {
+                    ops.add(ContentProviderOperation.newUpdate(uri)
+                            .withValues(values)
+                            .build());
+                    opLogos.add(null);
+                }
+                if (logo != null) {
+                    logos.put(TvContract.buildChannelLogoUri(uri), logo);
+                }
+            }
+            // Throttle the batch operation not to cause TransactionTooLargeException.
+            if (ops.size() >= BATCH_OPERATION_COUNT
+                    && !applyChannelBatch(resolver, ops, opLogos, logos)) {
+                return;
             }
-        }
-        if (!logos.isEmpty()) {
-            new InsertLogosTask(context).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, logos);
         }
 
         // Deletes channels which don't exist in the new feed.
-        int size = mExistingChannelsMap.size();
+        int size = existingChannelsMap.size();
         for (int i = 0; i < size; i++) {
-            Long rowId = mExistingChannelsMap.valueAt(i);
-            resolver.delete(TvContract.buildChannelUri(rowId), null, null);
+            long rowId = existingChannelsMap.valueAt(i).getAsLong(Channels._ID);
+            ops.add(ContentProviderOperation.newDelete(TvContract.buildChannelUri(rowId))
+                    .build());
+            opLogos.add(null);
+            if (ops.size() >= BATCH_OPERATION_COUNT
+                    && !applyChannelBatch(resolver, ops, opLogos, logos)) {
+                return;
+            }
+        }
+        if (!applyChannelBatch(resolver, ops, opLogos, logos)) {
+            return;
         }
+
+        // Even without logos, so that the cache drops the logos of removed channels.
+        new LogoCache(context).insertLogos(logos);
+    }
+
+    /**
+     * Applies and clears the pending channel operations. The logos of inserted channels are added
+     * to {@code logos} with the URIs of the new rows.
+     */
+    private static boolean applyChannelBatch(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> ops, List<String> opLogos, Map<Uri, String> logos) {
+        if (ops.isEmpty()) {
+            return true;
+        }
+        ContentProviderResult[] results;
+        try {
+            results = resolver.applyBatch(TvContract.AUTHORITY, ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to update channels.", e);
+            return false;
+        }
+        for (int i = 0; i < results.length; ++i) {
+            String logo = opLogos.get(i);
+            if (logo != null && results[i].uri != null) {
+                logos.put(TvContract.buildChannelLogoUri(results[i].uri), logo);
+            }
+        }
+        ops.clear();
+        opLogos.clear();
+        return true;
     }
 
     private static String getVideoFormat(int videoHeight) {
         return VIDEO_HEIGHT_TO_FORMAT_MAP.get(videoHeight);
     }
 
+    /**
+     * Maps the row IDs of the stored channels of the input to the feed channels they were created
+     * from. Channels are matched by original network ID first and by display number second. Stored
+     * channels which are not in the feed anymore are left out and logged.
+     *
+     * @return The channel map, or {@code null} if there are no stored channels.
+     */
     public static LongSparseArray<XmlTvParser.XmlTvChannel> buildChannelMap(
             ContentResolver resolver, String inputId, List<XmlTvParser.XmlTvChannel> channels) {
+        // Index the feed once, the first channel wins for duplicate keys.
+        Map<Integer, XmlTvParser.XmlTvChannel> channelsByNetworkId =
+                new HashMap<>(channels.size() * 2);
+        Map<String, XmlTvParser.XmlTvChannel> channelsByNumber =
+                new HashMap<>(channels.size() * 2);
+        for (XmlTvParser.XmlTvChannel channel : channels) {
+            if (!channelsByNetworkId.containsKey(channel.originalNetworkId)) {
+                channelsByNetworkId.put(channel.originalNetworkId, channel);
+            }
+            if (channel.displayNumber != null
+                    && !channelsByNumber.containsKey(channel.displayNumber)) {
+                channelsByNumber.put(channel.displayNumber, channel);
+            }
+        }
+
         Uri uri = TvContract.buildChannelsUriForInput(inputId);
         String[] projection = {
                 Channels._ID,
-                Channels.COLUMN_DISPLAY_NUMBER
+                Channels.COLUMN_DISPLAY_NUMBER,
+                Channels.COLUMN_ORIGINAL_NETWORK_ID
         };
 
         LongSparseArray<XmlTvParser.XmlTvChannel> channelMap = new LongSparseArray<>();
+        List<String> unmatchedChannels = new ArrayList<>();
         Cursor cursor = null;
         try {
             cursor = resolver.query(uri, projection, null, null, null);
@@ -147,19 +259,66 @@ public class TvContractUtil {
             while (cursor.moveToNext()) {
                 long channelId = cursor.getLong(0);
                 String channelNumber = cursor.getString(1);
-                channelMap.put(channelId, getChannelByNumber(channelNumber, channels));
+                XmlTvParser.XmlTvChannel channel = channelsByNetworkId.get(cursor.getInt(2));
+                if (channel == null && channelNumber != null) {
+                    channel = channelsByNumber.get(channelNumber);
+                }
+                if (channel == null) {
+                    unmatchedChannels.add(channelNumber);
+                } else {
+                    channelMap.put(channelId, channel);
+                }
             }
-        } catch (Exception e) {
-            Log.d(TAG, "Content provider query: " + e.getStackTrace());
-            return null;
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
+        if (!unmatchedChannels.isEmpty()) {
+            Log.w(TAG, unmatchedChannels.size() + " channels are not in the feed: "
+                    + unmatchedChannels);
+        }
         return channelMap;
     }
 
+    /**
+     * Stores the probe results of channels, keyed by channel ID, in their provider data. Every
+     * row is read again and only its probe fields are written, so that changes of a sync since
+     * the probe started are kept. Rows whose URL changed since are skipped. This must not be
+     * called on the main thread.
+     */
+    public static void updateChannelProbes(ContentResolver resolver,
+            LongSparseArray<StreamInfo> probed) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        int size = probed.size();
+        for (int i = 0; i < size; i++) {
+            Uri channelUri = TvContract.buildChannelUri(probed.keyAt(i));
+            StreamInfo probe = probed.valueAt(i);
+            Channel channel = getChannel(resolver, channelUri);
+            StreamInfo current = channel != null
+                    ? StreamInfo.decode(channel.getInternalProviderData()) : null;
+            if (current != null && probe.isProbed()
+                    && TextUtils.equals(current.getUrl(), probe.getUrl())) {
+                StreamInfo streamInfo = new StreamInfo.Builder(current)
+                        .setProbedType(probe.getProbedType())
+                        .setProbeTimeMs(probe.getProbeTimeMs())
+                        .build();
+                ops.add(ContentProviderOperation.newUpdate(channelUri)
+                        .withValue(Channels.COLUMN_INTERNAL_PROVIDER_DATA, streamInfo.encode())
+                        .build());
+            }
+            if (!ops.isEmpty() && (ops.size() >= BATCH_OPERATION_COUNT || i == size - 1)) {
+                try {
+                    resolver.applyBatch(TvContract.AUTHORITY, ops);
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(TAG, "Failed to update channel probes.", e);
+                    return;
+                }
+                ops.clear();
+            }
+        }
+    }
+
     public static Channel getChannel(ContentResolver resolver, Uri channelUri) {
         Cursor cursor = null;
         try {
@@ -181,8 +340,43 @@ public class TvContractUtil {
         return null;
     }
 
+    /**
+     * Returns all channels of the input.
+     */
+    public static List<Channel> getChannels(ContentResolver resolver, String inputId) {
+        Uri uri = TvContract.buildChannelsUriForInput(inputId);
+        Cursor cursor = null;
+        List<Channel> channels = new ArrayList<>();
+        try {
+            cursor = resolver.query(uri, null, null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                channels.add(Channel.fromCursor(cursor));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to get channels for " + inputId, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return channels;
+    }
+
     public static List<Program> getPrograms(ContentResolver resolver, Uri channelUri) {
-        Uri uri = TvContract.buildProgramsUriForChannel(channelUri);
+        return getPrograms(resolver, TvContract.buildProgramsUriForChannel(channelUri),
+                channelUri);
+    }
+
+    /**
+     * Returns the programs of the channel which overlap the given time range.
+     */
+    public static List<Program> getPrograms(ContentResolver resolver, Uri channelUri,
+            long startTimeMs, long endTimeMs) {
+        return getPrograms(resolver, TvContract.buildProgramsUriForChannel(channelUri,
+                startTimeMs, endTimeMs), channelUri);
+    }
+
+    private static List<Program> getPrograms(ContentResolver resolver, Uri uri, Uri channelUri) {
         Cursor cursor = null;
         List<Program> programs = new ArrayList<>();
         try {
@@ -213,7 +407,8 @@ public class TvContractUtil {
                 Programs.COLUMN_END_TIME_UTC_MILLIS,
                 Programs.COLUMN_CONTENT_RATING,
                 Programs.COLUMN_INTERNAL_PROVIDER_DATA,
-                Programs.COLUMN_CANONICAL_GENRE };
+                Programs.COLUMN_CANONICAL_GENRE,
+                Programs._ID };
         Cursor cursor = null;
         List<PlaybackInfo> list = new ArrayList<>();
         try {
@@ -221,11 +416,13 @@ public class TvContractUtil {
             while (cursor != null && cursor.moveToNext()) {
                 long startMs = cursor.getLong(0);
                 long endMs = cursor.getLong(1);
-                TvContentRating[] ratings = stringToContentRatings(cursor.getString(2));
-                Pair<Integer, String> values = parseInternalProviderData(cursor.getString(3));
-                int videoType = values.first;
-                String videoUrl = values.second;
-                list.add(new PlaybackInfo(startMs, endMs, videoUrl, videoType, ratings));
+                TvContentRating[] ratings = ContentRatingTable.get(cursor.getString(2));
+                StreamInfo streamInfo = StreamInfo.decode(cursor.getString(3));
+                if (streamInfo == null || streamInfo.getUrl() == null) {
+                    continue;
+                }
+                list.add(new PlaybackInfo(cursor.getLong(5), startMs, endMs, streamInfo,
+                        ratings));
                 if (list.size() > maxProgramInReturn) {
                     break;
                 }
@@ -239,111 +436,4 @@ public class TvContractUtil {
         }
         return list;
     }
-
-    public static String convertVideoInfoToInternalProviderData(int videotype, String videoUrl) {
-        return videotype + "," + videoUrl;
-    }
-
-    public static Pair<Integer, String> parseInternalProviderData(String internalData) {
-        String[] values = internalData.split(",", 2);
-        if (values.length != 2) {
-            throw new IllegalArgumentException(internalData);
-        }
-        return new Pair<>(Integer.parseInt(values[0]), values[1]);
-    }
-
-    public static void insertUrl(Context context, Uri contentUri, URL sourceUrl) {
-        if (DEBUG) {
-            Log.d(TAG, "Inserting " + sourceUrl + " to " + contentUri);
-        }
-        InputStream is = null;
-        OutputStream os = null;
-        try {
-            is = sourceUrl.openStream();
-            os = context.getContentResolver().openOutputStream(contentUri);
-            copy(is, os);
-        } catch (IOException ioe) {
-            Log.e(TAG, "Failed to write " + sourceUrl + "  to " + contentUri, ioe);
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    // Ignore exception.
-                }
-            }
-            if (os != null) {
-                try {
-                    os.close();
-                } catch (IOException e) {
-                    // Ignore exception.
-                }
-            }
-        }
-    }
-
-    public static void copy(InputStream is, OutputStream os) throws IOException {
-        byte[] buffer = new byte[1024];
-        int len;
-        while ((len = is.read(buffer)) != -1) {
-            os.write(buffer, 0, len);
-        }
-    }
-
-    public static TvContentRating[] stringToContentRatings(String commaSeparatedRatings) {
-        if (TextUtils.isEmpty(commaSeparatedRatings)) {
-            return null;
-        }
-        String[] ratings = commaSeparatedRatings.split("\\s*,\\s*");
-        TvContentRating[] contentRatings = new TvContentRating[ratings.length];
-        for (int i = 0; i < contentRatings.length; ++i) {
-            contentRatings[i] = TvContentRating.unflattenFromString(ratings[i]);
-        }
-        return contentRatings;
-    }
-
-    public static String contentRatingsToString(TvContentRating[] contentRatings) {
-        if (contentRatings == null || contentRatings.length == 0) {
-            return null;
-        }
-        final String DELIMITER = ",";
-        StringBuilder ratings = new StringBuilder(contentRatings[0].flattenToString());
-        for (int i = 1; i < contentRatings.length; ++i) {
-            ratings.append(DELIMITER);
-            ratings.append(contentRatings[i].flattenToString());
-        }
-        return ratings.toString();
-    }
-
-    private static XmlTvParser.XmlTvChannel getChannelByNumber(String channelNumber,
-            List<XmlTvParser.XmlTvChannel> channels) {
-        for (XmlTvParser.XmlTvChannel channel : channels) {
-            if (channelNumber.equals(channel.displayNumber)) {
-                return channel;
-            }
-        }
-        throw new IllegalArgumentException("Unknown channel: " + channelNumber);
-    }
-
-    public static class InsertLogosTask extends AsyncTask<Map<Uri, String>, Void, Void> {
-        private final Context context;
-
-        InsertLogosTask(Context context) {
-            this.context = context;
-        }
-
-        @Override
-        public Void doInBackground(Map<Uri, String>... logosList) {
-            for (Map<Uri, String> logos : logosList) {
-                for (Uri uri : logos.keySet()) {
-                    try {
-                        insertUrl(context, uri, new URL(logos.get(uri)));
-                    } catch (MalformedURLException e) {
-                        Log.e(TAG, "Can't load " + logos.get(uri), e);
-                    }
-                }
-            }
-            return null;
-        }
-    }
 }
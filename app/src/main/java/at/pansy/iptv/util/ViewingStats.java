@@ -0,0 +1,52 @@
+package at.pansy.iptv.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Lightweight local store of how often and how recently channels are watched.
+ *
+ * <p>Each channel keeps a tune count which decays with a half-life of
+ * {@link #HALF_LIFE_MS}, so the priority of a channel reflects both frequency and recency.
+ */
+public class ViewingStats {
+
+    private static final String PREFERENCES_NAME = "viewing_stats";
+
+    private static final String KEY_PREFIX_SCORE = "score_";
+    private static final String KEY_PREFIX_LAST_TUNE = "last_tune_";
+
+    private static final long HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;  // 1 week
+
+    private final SharedPreferences preferences;
+
+    public ViewingStats(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records that the channel was tuned to at {@code timeMs}. The change is persisted
+     * asynchronously.
+     */
+    public void recordTune(long channelId, long timeMs) {
+        float score = getPriority(channelId, timeMs) + 1;
+        preferences.edit()
+                .putFloat(KEY_PREFIX_SCORE + channelId, score)
+                .putLong(KEY_PREFIX_LAST_TUNE + channelId, timeMs)
+                .apply();
+    }
+
+    /**
+     * Returns the decayed tune count of the channel at {@code timeMs}, or 0 if it was never
+     * watched.
+     */
+    public float getPriority(long channelId, long timeMs) {
+        float score = preferences.getFloat(KEY_PREFIX_SCORE + channelId, 0);
+        if (score == 0) {
+            return 0;
+        }
+        long ageMs = Math.max(0, timeMs - preferences.getLong(KEY_PREFIX_LAST_TUNE + channelId,
+                timeMs));
+        return (float) (score * Math.pow(0.5, (double) ageMs / HALF_LIFE_MS));
+    }
+}
@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import at.pansy.iptv.domain.PlaybackInfo;
+import at.pansy.iptv.util.ContentRatingTable;
 
 /**
  * XMLTV document parser which conforms to http://wiki.xmltv.org/index.php/Main_Page
@@ -94,13 +95,22 @@ public class XmlTvParser {
 
     public static TvContentRating[] xmlTvRatingToTvContentRating(
             XmlTvRating[] ratings) {
-        List<TvContentRating> list = new ArrayList<>();
+        // Programs mostly have a single rating, which is looked up without joining.
+        String flattened = null;
+        StringBuilder builder = null;
         for (XmlTvRating rating : ratings) {
             if (ANDROID_TV_RATING.equals(rating.system)) {
-                list.add(TvContentRating.unflattenFromString(rating.value));
+                if (flattened == null) {
+                    flattened = rating.value;
+                } else {
+                    if (builder == null) {
+                        builder = new StringBuilder(flattened);
+                    }
+                    builder.append(',').append(rating.value);
+                }
             }
         }
-        return list.toArray(new TvContentRating[list.size()]);
+        return ContentRatingTable.get(builder != null ? builder.toString() : flattened);
     }
 
     public static TvListing parse(InputStream inputStream) {
@@ -317,6 +327,10 @@ public class XmlTvParser {
         public final int serviceId;
         public final boolean repeatPrograms;
         public String url;
+        // Further URLs of the same stream, tried in order when url fails.
+        public final List<String> alternateUrls = new ArrayList<>();
+        // Name of the playback profile to play the channel with, or null to choose one.
+        public String playbackProfile;
 
         public XmlTvChannel(String id, String displayName, String displayNumber, XmlTvIcon icon,
                             int originalNetworkId, int transportStreamId, int serviceId,